@@ -0,0 +1,334 @@
+package edu.usfca.cs272;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import edu.usfca.cs272.InvertedIndex.SingleSearchResult;
+
+/**
+ * Query tree of words combined with the uppercase operators {@code AND},
+ * {@code OR} and {@code NOT}, grouped with parentheses. {@code NOT} binds
+ * tightest and {@code OR} loosest, and words without an operator between them
+ * are combined with {@code OR} like a plain query. {@code a NOT b} is read as
+ * {@code a AND NOT b}. A {@code NOT} with nothing to exclude from matches
+ * nothing. A word that stems to several stems, such as two words joined by a
+ * non-breaking space, is read as their {@code AND}. Lines without any operator
+ * are plain queries.
+ *
+ * @author Alessandro Barrera
+ *
+ */
+public class BooleanQuery implements SearchQuery {
+    /**
+     * Query tree node types
+     */
+    public enum Operator {
+        /** A single stem. */
+        TERM,
+        /** Locations matching every child. */
+        AND,
+        /** Locations matching any child. */
+        OR,
+        /** Locations not matching the child. */
+        NOT
+    }
+
+    /**
+     * Regular expression of the tokens of a boolean query line
+     */
+    private static final Pattern TOKEN_REGEX = Pattern.compile("[()]|[^\\s()]+");
+
+    /**
+     * Node type
+     */
+    private final Operator operator;
+
+    /**
+     * Stem of a term node, or null
+     */
+    private final String stem;
+
+    /**
+     * Children of an operator node
+     */
+    private final List<BooleanQuery> children;
+
+    /**
+     * Initializes a node. Queries are built by {@link #parse(String)}; this is
+     * also used to rebuild a parsed query sent to a shard server.
+     *
+     * @param operator node type
+     * @param stem     of a term node, or null
+     * @param children of an operator node
+     */
+    BooleanQuery(Operator operator, String stem, List<BooleanQuery> children) {
+        this.operator = operator;
+        this.stem = stem;
+        this.children = List.copyOf(children);
+    }
+
+    /**
+     * Parses a query line written with boolean operators
+     *
+     * @param line to parse
+     * @return the query, or null if the line has no operator or no words
+     */
+    public static BooleanQuery parse(String line) {
+        List<String> tokens = new ArrayList<>();
+        boolean operators = false;
+        Matcher matcher = TOKEN_REGEX.matcher(line);
+        while (matcher.find()) {
+            String token = matcher.group();
+            operators |= isOperator(token);
+            tokens.add(token);
+        }
+
+        if (!operators) {
+            return null;
+        }
+
+        Parser parser = new Parser(tokens);
+        List<BooleanQuery> clauses = new ArrayList<>();
+        while (parser.hasNext()) {
+            BooleanQuery clause = parser.parseOr();
+            if (clause != null) {
+                clauses.add(clause);
+            }
+            if (parser.hasNext()) {
+                parser.next();
+            }
+        }
+        return combine(Operator.OR, clauses);
+    }
+
+    /**
+     * Checks if the token is an operator keyword
+     *
+     * @param token to check
+     * @return true for {@code AND}, {@code OR} and {@code NOT}
+     */
+    private static boolean isOperator(String token) {
+        return token.equals("AND") || token.equals("OR") || token.equals("NOT");
+    }
+
+    /**
+     * Combines clauses with an operator, flattening nested clauses of the same
+     * operator
+     *
+     * @param operator {@link Operator#AND} or {@link Operator#OR}
+     * @param clauses  to combine
+     * @return the combined query, the only clause, or null if there are none
+     */
+    private static BooleanQuery combine(Operator operator, List<BooleanQuery> clauses) {
+        if (clauses.isEmpty()) {
+            return null;
+        }
+        if (clauses.size() == 1) {
+            return clauses.get(0);
+        }
+
+        List<BooleanQuery> children = new ArrayList<>();
+        for (BooleanQuery clause : clauses) {
+            if (clause.operator == operator) {
+                children.addAll(clause.children);
+            } else {
+                children.add(clause);
+            }
+        }
+        return new BooleanQuery(operator, null, children);
+    }
+
+    /**
+     * Returns the node type
+     *
+     * @return operator
+     */
+    public Operator getOperator() {
+        return operator;
+    }
+
+    /**
+     * Returns the stem of a term node
+     *
+     * @return stem or null
+     */
+    public String getStem() {
+        return stem;
+    }
+
+    /**
+     * Returns the children of an operator node
+     *
+     * @return unmodifiable list of children
+     */
+    public List<BooleanQuery> getChildren() {
+        return children;
+    }
+
+    @Override
+    public List<SingleSearchResult> search(InvertedIndex index, boolean exact) {
+        return index.booleanSearch(this, exact);
+    }
+
+    /**
+     * Returns the query in its normalized form, used as its key in the results
+     *
+     * @return stemmed query with parentheses only where needed
+     */
+    @Override
+    public String toString() {
+        switch (operator) {
+            case TERM:
+                return stem;
+            case NOT:
+                return "NOT " + children.get(0).toNestedString(Operator.NOT);
+            default:
+                List<String> parts = new ArrayList<>();
+                for (BooleanQuery child : children) {
+                    parts.add(child.toNestedString(operator));
+                }
+                return String.join(" " + operator + " ", parts);
+        }
+    }
+
+    /**
+     * Returns the query in parentheses if it binds looser than its parent
+     *
+     * @param parent operator of the parent node
+     * @return normalized query
+     */
+    private String toNestedString(Operator parent) {
+        boolean looser = (operator == Operator.OR && parent != Operator.OR)
+                || (operator == Operator.AND && parent == Operator.NOT);
+        return looser ? "(" + this + ")" : toString();
+    }
+
+    /**
+     * Recursive descent parser over the tokens of a query line
+     */
+    private static class Parser {
+        /**
+         * Tokens of the line
+         */
+        private final List<String> tokens;
+
+        /**
+         * Index of the next token
+         */
+        private int position;
+
+        /**
+         * Initializes the parser
+         *
+         * @param tokens of the line
+         */
+        public Parser(List<String> tokens) {
+            this.tokens = tokens;
+            this.position = 0;
+        }
+
+        /**
+         * Checks if there are tokens left
+         *
+         * @return true if there are tokens left
+         */
+        public boolean hasNext() {
+            return position < tokens.size();
+        }
+
+        /**
+         * Consumes the next token
+         *
+         * @return next token
+         */
+        public String next() {
+            return tokens.get(position++);
+        }
+
+        /**
+         * Checks if the next token is the expected token
+         *
+         * @param expected token
+         * @return true if the next token matches
+         */
+        private boolean peek(String expected) {
+            return hasNext() && tokens.get(position).equals(expected);
+        }
+
+        /**
+         * Parses clauses combined with {@code OR} or with no operator, up to a
+         * closing parenthesis
+         *
+         * @return clause or null if there are no words
+         */
+        public BooleanQuery parseOr() {
+            List<BooleanQuery> clauses = new ArrayList<>();
+            while (hasNext() && !peek(")")) {
+                if (peek("OR")) {
+                    next();
+                    continue;
+                }
+                BooleanQuery clause = parseAnd();
+                if (clause != null) {
+                    clauses.add(clause);
+                }
+            }
+            return combine(Operator.OR, clauses);
+        }
+
+        /**
+         * Parses clauses combined with {@code AND} or {@code NOT}
+         *
+         * @return clause or null if there are no words
+         */
+        private BooleanQuery parseAnd() {
+            List<BooleanQuery> clauses = new ArrayList<>();
+            do {
+                if (peek("AND")) {
+                    next();
+                }
+                BooleanQuery clause = parseUnary();
+                if (clause != null) {
+                    clauses.add(clause);
+                }
+            } while (peek("AND") || peek("NOT"));
+            return combine(Operator.AND, clauses);
+        }
+
+        /**
+         * Parses a word, a negated clause or a clause in parentheses. A word that
+         * stems to several stems requires all of them.
+         *
+         * @return clause or null if there are no words
+         */
+        private BooleanQuery parseUnary() {
+            if (!hasNext() || peek(")") || peek("OR")) {
+                return null;
+            }
+
+            String token = next();
+            if (token.equals("NOT")) {
+                BooleanQuery clause = parseUnary();
+                return clause == null ? null : new BooleanQuery(Operator.NOT, null, List.of(clause));
+            }
+            if (token.equals("AND")) {
+                return parseUnary();
+            }
+            if (token.equals("(")) {
+                BooleanQuery clause = parseOr();
+                if (peek(")")) {
+                    next();
+                }
+                return clause;
+            }
+
+            List<BooleanQuery> terms = new ArrayList<>();
+            for (String stem : TextFileStemmer.listStems(token)) {
+                terms.add(new BooleanQuery(Operator.TERM, stem, List.of()));
+            }
+            return combine(Operator.AND, terms);
+        }
+    }
+}
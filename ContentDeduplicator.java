@@ -0,0 +1,234 @@
+package edu.usfca.cs272;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe detector of duplicate page content, used by the crawler to index
+ * each distinct body once. Every page is first matched on an exact 64-bit hash
+ * of its stems. In {@link Mode#SIMHASH} mode, pages are also matched on a
+ * 64-bit SimHash of their stem frequencies, so pages that differ only in a few
+ * words (printer-friendly copies, mirrors with a different footer) are treated
+ * as duplicates. Urls whose content duplicates an earlier page are recorded as
+ * aliases of that page.
+ *
+ * @author Alessandro Barrera
+ *
+ */
+public class ContentDeduplicator {
+    /**
+     * Duplicate detection modes
+     */
+    public enum Mode {
+        /** Only identical stem sequences are duplicates. */
+        EXACT,
+        /** Stem sequences with nearly identical SimHash values are duplicates. */
+        SIMHASH
+    }
+
+    /**
+     * Maximum number of differing SimHash bits for two pages to be near-duplicates
+     */
+    public static final int MAX_DISTANCE = 3;
+
+    /**
+     * Number of SimHash bands; must exceed {@link #MAX_DISTANCE} so any two
+     * near-duplicates share at least one identical band
+     */
+    private static final int BANDS = 4;
+
+    /**
+     * Detection mode
+     */
+    private final Mode mode;
+
+    /**
+     * Canonical url by exact content hash
+     */
+    private final Map<Long, String> exact;
+
+    /**
+     * SimHash entries by band key, guarded by the map itself
+     */
+    private final Map<Long, List<SimHashEntry>> bands;
+
+    /**
+     * Canonical url by alias url
+     */
+    private final Map<String, String> aliases;
+
+    /**
+     * Number of words that were not indexed because their page was a duplicate
+     */
+    private final AtomicLong skippedWords;
+
+    /**
+     * Initializes a deduplicator
+     *
+     * @param mode detection mode
+     */
+    public ContentDeduplicator(Mode mode) {
+        this.mode = mode;
+        this.exact = new ConcurrentHashMap<>();
+        this.bands = new HashMap<>();
+        this.aliases = new ConcurrentHashMap<>();
+        this.skippedWords = new AtomicLong();
+    }
+
+    /**
+     * Checks the page content against every page seen so far. If the content is
+     * new, the url becomes its canonical url; otherwise the url is recorded as an
+     * alias of the earlier page.
+     *
+     * @param url   of the page
+     * @param stems of the cleaned page content in order
+     * @return the canonical url of the content, which is the given url unless the
+     *         page is a duplicate
+     */
+    public String canonical(String url, List<String> stems) {
+        long hash = VisitedUrlSet.fingerprint(String.join(" ", stems));
+        String canonical = exact.putIfAbsent(hash, url);
+
+        if (canonical == null && mode == Mode.SIMHASH) {
+            canonical = nearDuplicate(url, simhash(stems));
+            if (canonical != null) {
+                exact.replace(hash, url, canonical);
+            }
+        }
+
+        if (canonical == null || canonical.equals(url)) {
+            return url;
+        }
+
+        aliases.put(url, canonical);
+        skippedWords.addAndGet(stems.size());
+        return canonical;
+    }
+
+    /**
+     * Finds a page whose SimHash is within {@link #MAX_DISTANCE} bits, or registers
+     * the url under its SimHash if there is none
+     *
+     * @param url     of the page
+     * @param simhash of the page content
+     * @return canonical url of a near-duplicate page or null
+     */
+    private String nearDuplicate(String url, long simhash) {
+        synchronized (bands) {
+            for (int band = 0; band < BANDS; band++) {
+                List<SimHashEntry> entries = bands.get(bandKey(simhash, band));
+                if (entries == null) {
+                    continue;
+                }
+                for (SimHashEntry entry : entries) {
+                    if (Long.bitCount(entry.simhash ^ simhash) <= MAX_DISTANCE) {
+                        return entry.url;
+                    }
+                }
+            }
+
+            SimHashEntry entry = new SimHashEntry(simhash, url);
+            for (int band = 0; band < BANDS; band++) {
+                bands.computeIfAbsent(bandKey(simhash, band), key -> new ArrayList<>()).add(entry);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Returns the unmodifiable map of alias urls to their canonical url
+     *
+     * @return aliases
+     */
+    public Map<String, String> getAliases() {
+        return Collections.unmodifiableMap(aliases);
+    }
+
+    /**
+     * Returns the number of words that were not indexed because their page was a
+     * duplicate
+     *
+     * @return skipped words
+     */
+    public long getSkippedWords() {
+        return skippedWords.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d duplicate pages, %d words not indexed", aliases.size(), getSkippedWords());
+    }
+
+    /**
+     * Computes the 64-bit SimHash of the stems, weighting each stem by the number
+     * of times it occurs
+     *
+     * @param stems to hash
+     * @return SimHash value
+     */
+    public static long simhash(List<String> stems) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String stem : stems) {
+            counts.merge(stem, 1, Integer::sum);
+        }
+
+        int[] weights = new int[64];
+        for (var entry : counts.entrySet()) {
+            long hash = VisitedUrlSet.fingerprint(entry.getKey());
+            for (int bit = 0; bit < 64; bit++) {
+                weights[bit] += ((hash >>> bit) & 1) == 1 ? entry.getValue() : -entry.getValue();
+            }
+        }
+
+        long simhash = 0;
+        for (int bit = 0; bit < 64; bit++) {
+            if (weights[bit] > 0) {
+                simhash |= 1L << bit;
+            }
+        }
+        return simhash;
+    }
+
+    /**
+     * Returns the key of one 16-bit band of the SimHash, tagged with the band
+     * number
+     *
+     * @param simhash value
+     * @param band    number
+     * @return band key
+     */
+    private static long bandKey(long simhash, int band) {
+        return ((long) band << 16) | ((simhash >>> (band * 16)) & 0xffff);
+    }
+
+    /**
+     * SimHash of a canonical page
+     */
+    private static class SimHashEntry {
+        /**
+         * SimHash value
+         */
+        private final long simhash;
+
+        /**
+         * Canonical url
+         */
+        private final String url;
+
+        /**
+         * Initializes the entry
+         *
+         * @param simhash value
+         * @param url     canonical url
+         */
+        public SimHashEntry(long simhash, String url) {
+            this.simhash = simhash;
+            this.url = url;
+        }
+    }
+}
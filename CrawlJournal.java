@@ -0,0 +1,395 @@
+package edu.usfca.cs272;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Append-only journal of the crawl frontier so an interrupted crawl can resume
+ * where it stopped. Every url is written once when it is queued or spilled to
+ * disk, and again once it is fetched or fails. Spilled urls only live in the
+ * journal until the crawler reloads them, which keeps the in-memory frontier
+ * bounded: only the fingerprints of the urls queued, fetched and failed are
+ * kept in memory, and reloads read on from where the last one stopped instead
+ * of reading the whole file again.
+ *
+ * <p>
+ * Each line is a record type followed by a tab and the url: {@code Q} for urls
+ * handed to the work queue, {@code S} for urls spilled to disk, {@code F} for
+ * fetched urls and {@code X} for urls that could not be fetched, which are not
+ * retried when the crawl resumes.
+ *
+ * @author Alessandro Barrera
+ *
+ */
+public class CrawlJournal implements AutoCloseable {
+    /**
+     * Record type for urls handed to the work queue
+     */
+    private static final char QUEUED = 'Q';
+
+    /**
+     * Record type for urls kept on disk only
+     */
+    private static final char SPILLED = 'S';
+
+    /**
+     * Record type for fetched urls
+     */
+    private static final char FETCHED = 'F';
+
+    /**
+     * Record type for urls that could not be fetched
+     */
+    private static final char FAILED = 'X';
+
+    /**
+     * Number of records after which the journal is compacted. Once compacted, it
+     * is compacted again when it has doubled in size, so compacting a journal of
+     * many distinct urls does not rewrite it on every reload.
+     */
+    public static final int COMPACT_THRESHOLD = 100_000;
+
+    /** Logger used for this class. */
+    private static final Logger log = LogManager.getLogger();
+
+    /**
+     * Path of the journal file
+     */
+    private final Path path;
+
+    /**
+     * Writer appending to the journal
+     */
+    private BufferedWriter writer;
+
+    /**
+     * Number of records in the journal file
+     */
+    private long records;
+
+    /**
+     * Number of records at which the journal is compacted next
+     */
+    private long compactAt;
+
+    /**
+     * Fingerprints of the urls fetched
+     */
+    private final Set<Long> fetched;
+
+    /**
+     * Fingerprints of the urls that could not be fetched
+     */
+    private final Set<Long> failed;
+
+    /**
+     * Fingerprints of the urls queued, fetched or failed, which are not reloaded
+     */
+    private final Set<Long> loaded;
+
+    /**
+     * Offset in the file before which every spilled url was reloaded
+     */
+    private long cursor;
+
+    /**
+     * Number of records appended since the journal was opened
+     */
+    private long appended;
+
+    /**
+     * Time the journal was opened in nanoseconds
+     */
+    private final long opened;
+
+    /**
+     * Opens the journal for appending, creating the file if needed
+     *
+     * @param path of the journal file
+     * @throws IOException if an IO error occurs
+     */
+    public CrawlJournal(Path path) throws IOException {
+        this.path = path;
+        this.records = 0;
+        this.compactAt = COMPACT_THRESHOLD;
+        this.fetched = new HashSet<>();
+        this.failed = new HashSet<>();
+        this.loaded = new HashSet<>();
+        this.cursor = 0;
+        this.appended = 0;
+        this.writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+        this.opened = System.nanoTime();
+
+        scan(0, (type, url) -> {
+            track(type, url);
+            records++;
+            return true;
+        });
+    }
+
+    /**
+     * Replays the journal, passing every url ever discovered to visited, every
+     * fetched url to fetched, and every url that was discovered but neither
+     * fetched nor failed to pending in discovery order
+     *
+     * @param visited consumer of discovered urls
+     * @param fetched consumer of fetched urls
+     * @param pending consumer of urls still to crawl
+     * @return number of urls replayed
+     * @throws IOException if an IO error occurs
+     */
+    public synchronized int replay(Consumer<String> visited, Consumer<String> fetched, Consumer<String> pending)
+            throws IOException {
+        long start = System.nanoTime();
+        Set<Long> seen = new HashSet<>();
+
+        scan(0, (type, url) -> {
+            long fingerprint = VisitedUrlSet.fingerprint(url);
+            if (seen.add(fingerprint)) {
+                visited.accept(url);
+                if (this.fetched.contains(fingerprint)) {
+                    fetched.accept(url);
+                } else if (!failed.contains(fingerprint)) {
+                    pending.accept(url);
+                }
+            }
+            return true;
+        });
+
+        log.info("Replayed {} journaled urls from {} in {} ms", seen.size(), path,
+                (System.nanoTime() - start) / 1_000_000);
+        return seen.size();
+    }
+
+    /**
+     * Records a url handed to the work queue
+     *
+     * @param url queued url
+     * @throws IOException if an IO error occurs
+     */
+    public void queued(String url) throws IOException {
+        append(QUEUED, url);
+    }
+
+    /**
+     * Records a url kept on disk until the crawler reloads it
+     *
+     * @param url spilled url
+     * @throws IOException if an IO error occurs
+     */
+    public void spilled(String url) throws IOException {
+        append(SPILLED, url);
+    }
+
+    /**
+     * Records a fetched url
+     *
+     * @param url fetched url
+     * @throws IOException if an IO error occurs
+     */
+    public void fetched(String url) throws IOException {
+        append(FETCHED, url);
+    }
+
+    /**
+     * Records a url that could not be fetched, so it is not retried
+     *
+     * @param url failed url
+     * @throws IOException if an IO error occurs
+     */
+    public void failed(String url) throws IOException {
+        append(FAILED, url);
+    }
+
+    /**
+     * Reads up to limit spilled urls back from disk and records them as queued.
+     * Must only be called while nothing is being crawled.
+     *
+     * @param limit maximum number of urls to reload
+     * @return list of urls to queue
+     * @throws IOException if an IO error occurs
+     */
+    public synchronized List<String> reload(int limit) throws IOException {
+        List<String> urls = new ArrayList<>();
+        if (limit < 1) {
+            return urls;
+        }
+
+        cursor = scan(cursor, (type, url) -> {
+            if (type == SPILLED && loaded.add(VisitedUrlSet.fingerprint(url))) {
+                urls.add(url);
+            }
+            return urls.size() < limit;
+        });
+
+        for (String url : urls) {
+            append(QUEUED, url);
+        }
+        return urls;
+    }
+
+    /**
+     * Rewrites the journal with a single record per url once it has grown past the
+     * compaction threshold, in one pass over the file. Queued urls that were not
+     * fetched become spilled, so this must only be called while nothing is being
+     * crawled.
+     *
+     * @throws IOException if an IO error occurs
+     */
+    public synchronized void compact() throws IOException {
+        if (records < compactAt) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        Set<Long> seen = new HashSet<>();
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try (BufferedWriter compacted = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            scan(0, (type, url) -> {
+                long fingerprint = VisitedUrlSet.fingerprint(url);
+                if (seen.add(fingerprint)) {
+                    compacted.write(fetched.contains(fingerprint) ? FETCHED
+                            : failed.contains(fingerprint) ? FAILED : SPILLED);
+                    compacted.write('\t');
+                    compacted.write(url);
+                    compacted.write('\n');
+                }
+                return true;
+            });
+        }
+
+        writer.close();
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        log.info("Compacted crawl journal from {} to {} records in {} ms", records, seen.size(),
+                (System.nanoTime() - start) / 1_000_000);
+        records = seen.size();
+        compactAt = Math.max(COMPACT_THRESHOLD, 2 * records);
+
+        // queued urls that were not fetched are spilled again
+        loaded.clear();
+        loaded.addAll(fetched);
+        loaded.addAll(failed);
+        cursor = 0;
+    }
+
+    /**
+     * Appends one record and flushes it to the file
+     *
+     * @param type record type
+     * @param url  to record
+     * @throws IOException if an IO error occurs
+     */
+    private synchronized void append(char type, String url) throws IOException {
+        writer.write(type);
+        writer.write('\t');
+        writer.write(url);
+        writer.write('\n');
+        writer.flush();
+        track(type, url);
+        records++;
+        appended++;
+    }
+
+    /**
+     * Updates the fingerprints kept in memory with one record
+     *
+     * @param type record type
+     * @param url  recorded url
+     */
+    private void track(char type, String url) {
+        long fingerprint = VisitedUrlSet.fingerprint(url);
+        switch (type) {
+            case QUEUED:
+                loaded.add(fingerprint);
+                break;
+            case FETCHED:
+                fetched.add(fingerprint);
+                loaded.add(fingerprint);
+                break;
+            case FAILED:
+                failed.add(fingerprint);
+                loaded.add(fingerprint);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Streams the records of the journal file from an offset to the visitor in
+     * order, until the visitor stops. Lines without a valid record type are
+     * skipped.
+     *
+     * @param from    offset in the file of the first record
+     * @param visitor to call for each record
+     * @return offset in the file after the last record visited
+     * @throws IOException if an IO error occurs
+     */
+    private long scan(long from, RecordVisitor visitor) throws IOException {
+        writer.flush();
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+            in.skipNBytes(from);
+            long position = from;
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int next;
+            while ((next = in.read()) != -1) {
+                if (next != '\n') {
+                    line.write(next);
+                    continue;
+                }
+
+                position += line.size() + 1;
+                String record = line.toString(StandardCharsets.UTF_8);
+                line.reset();
+                if (record.length() > 2 && record.charAt(1) == '\t'
+                        && !visitor.visit(record.charAt(0), record.substring(2))) {
+                    break;
+                }
+            }
+            return position;
+        }
+    }
+
+    /**
+     * Visitor of journal records
+     */
+    private interface RecordVisitor {
+        /**
+         * Visits one record
+         *
+         * @param type record type
+         * @param url  recorded url
+         * @return true to visit the next record
+         * @throws IOException if an IO error occurs
+         */
+        public boolean visit(char type, String url) throws IOException;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+        double seconds = (System.nanoTime() - opened) / 1e9;
+        log.info("Crawl journal appended {} records ({} records/sec)", appended,
+                seconds > 0 ? (long) (appended / seconds) : appended);
+    }
+}
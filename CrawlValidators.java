@@ -0,0 +1,197 @@
+package edu.usfca.cs272;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread-safe store of the cache validators ("ETag" and "Last-Modified") and
+ * outgoing links of every crawled url, used to re-crawl with conditional GET
+ * requests. The links are kept so the crawl can continue past pages the server
+ * reports as unchanged, since those responses have no content to parse.
+ *
+ * <p>
+ * Stored on disk as one tab-separated line per url: the url, the entity tag,
+ * the last modified date, and then every link found on the page.
+ *
+ * @author Alessandro Barrera
+ *
+ */
+public class CrawlValidators {
+    /**
+     * Validators by url
+     */
+    private final Map<String, Validator> validators;
+
+    /**
+     * Initializes an empty store
+     */
+    public CrawlValidators() {
+        this.validators = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Returns the validators stored for the url
+     *
+     * @param url crawled url
+     * @return validators or null if the url was never crawled
+     */
+    public Validator get(String url) {
+        return validators.get(url);
+    }
+
+    /**
+     * Stores the validators and links of a crawled url
+     *
+     * @param url          crawled url
+     * @param etag         entity tag or null
+     * @param lastModified last modified date or null
+     * @param links        links found on the page
+     */
+    public void put(String url, String etag, String lastModified, List<String> links) {
+        validators.put(url, new Validator(etag, lastModified, links));
+    }
+
+    /**
+     * Removes the validators of a url that can no longer be fetched
+     *
+     * @param url crawled url
+     */
+    public void remove(String url) {
+        validators.remove(url);
+    }
+
+    /**
+     * Returns the number of urls stored
+     *
+     * @return number of urls
+     */
+    public int size() {
+        return validators.size();
+    }
+
+    /**
+     * Loads the validators from a file written by {@link #save(Path)}. A missing
+     * file is treated as empty.
+     *
+     * @param path to read
+     * @throws IOException if an IO error occurs
+     */
+    public void load(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line = null;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length >= 3) {
+                    put(fields[0], emptyToNull(fields[1]), emptyToNull(fields[2]),
+                            List.of(Arrays.copyOfRange(fields, 3, fields.length)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves the validators to a file
+     *
+     * @param path to write
+     * @throws IOException if an IO error occurs
+     */
+    public void save(Path path) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            for (var entry : validators.entrySet()) {
+                Validator validator = entry.getValue();
+                writer.write(entry.getKey());
+                writer.write('\t');
+                writer.write(validator.etag == null ? "" : validator.etag);
+                writer.write('\t');
+                writer.write(validator.lastModified == null ? "" : validator.lastModified);
+                for (String link : validator.links) {
+                    writer.write('\t');
+                    writer.write(link);
+                }
+                writer.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Converts empty fields back to null
+     *
+     * @param field to convert
+     * @return the field or null if empty
+     */
+    private static String emptyToNull(String field) {
+        return field.isEmpty() ? null : field;
+    }
+
+    /**
+     * Validators and links of one crawled url
+     */
+    public static class Validator {
+        /**
+         * Entity tag or null
+         */
+        private final String etag;
+
+        /**
+         * Last modified date or null
+         */
+        private final String lastModified;
+
+        /**
+         * Links found on the page
+         */
+        private final List<String> links;
+
+        /**
+         * Initializes the validators
+         *
+         * @param etag         entity tag or null
+         * @param lastModified last modified date or null
+         * @param links        links found on the page
+         */
+        public Validator(String etag, String lastModified, List<String> links) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.links = List.copyOf(links);
+        }
+
+        /**
+         * Returns the entity tag
+         *
+         * @return entity tag or null
+         */
+        public String getEtag() {
+            return etag;
+        }
+
+        /**
+         * Returns the last modified date
+         *
+         * @return last modified date or null
+         */
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Returns the links found on the page
+         *
+         * @return unmodifiable list of links
+         */
+        public List<String> getLinks() {
+            return links;
+        }
+    }
+}
@@ -1,11 +1,14 @@
 package edu.usfca.cs272;
 
-import java.net.MalformedURLException;
+import java.io.IOException;
 import java.net.URISyntaxException;
 import java.net.URL;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /**
  * Web crawler class
@@ -19,9 +22,9 @@ public class Crawler {
      */
     private final ThreadSafeInvertedIndex index;
     /**
-     * Work Queue to manage multithreading
+     * Scheduler handing urls to the work queue politely per host
      */
-    private final WorkQueue workQueue;
+    private final HostScheduler scheduler;
     /**
      * Number of urls to crawl
      */
@@ -34,7 +37,38 @@ public class Crawler {
     /**
      * Set of visited Urls
      */
-    private final Set<URL> visitedUrls;
+    private final VisitedUrlSet visitedUrls;
+
+    /**
+     * Journal of the crawl frontier, or null if the crawl is not persisted
+     */
+    private final CrawlJournal journal;
+
+    /**
+     * Validators of previously crawled urls for conditional re-crawls, or null
+     */
+    private final CrawlValidators validators;
+
+    /**
+     * Detector of duplicate page content, or null to index every page
+     */
+    private final ContentDeduplicator deduplicator;
+
+    /**
+     * Maximum number of urls held in the work queue before spilling to the journal
+     */
+    private final int maxPending;
+
+    /**
+     * Number of urls currently held in the work queue
+     */
+    private final AtomicInteger pending;
+
+    /** The default number of urls held in memory before spilling to disk. */
+    public static final int DEFAULT_MAX_PENDING = 10_000;
+
+    /** Logger used for this class. */
+    private static final Logger log = LogManager.getLogger();
 
     /**
      * Initial Constructor
@@ -45,57 +79,217 @@ public class Crawler {
      * @param initialCrawl     initial url to crawl
      */
     public Crawler(InvertedIndex invertedIndex, WorkQueue workQueue, int numOfUrlsToCrawl, String initialCrawl) {
+        this(invertedIndex, new HostScheduler(workQueue), numOfUrlsToCrawl, initialCrawl, null, Integer.MAX_VALUE,
+                null, null);
+    }
+
+    /**
+     * Constructor for a crawl whose frontier may be journaled so it can be
+     * resumed, and that may re-crawl previously crawled urls conditionally
+     *
+     * @param invertedIndex    to work on
+     * @param scheduler        to hand urls to the work queue per host
+     * @param numOfUrlsToCrawl number of urls to crawl
+     * @param initialCrawl     initial url to crawl
+     * @param journal          journal of the crawl frontier, or null
+     * @param maxPending       maximum number of urls in memory before spilling to
+     *                         the journal
+     * @param validators       validators of previously crawled urls to re-crawl
+     *                         with conditional requests, or null
+     * @param deduplicator     detector of duplicate page content so each distinct
+     *                         body is indexed once, or null
+     */
+    public Crawler(InvertedIndex invertedIndex, HostScheduler scheduler, int numOfUrlsToCrawl, String initialCrawl,
+            CrawlJournal journal, int maxPending, CrawlValidators validators, ContentDeduplicator deduplicator) {
         this.index = (ThreadSafeInvertedIndex) invertedIndex;
-        this.workQueue = workQueue;
+        this.scheduler = scheduler;
         this.numOfUrlsToCrawl = numOfUrlsToCrawl;
         this.initialCrawl = initialCrawl;
-        this.visitedUrls = new HashSet<>();
+        this.visitedUrls = new VisitedUrlSet(numOfUrlsToCrawl);
+        this.journal = journal;
+        this.validators = validators;
+        this.deduplicator = deduplicator;
+        this.maxPending = journal == null ? Integer.MAX_VALUE : maxPending;
+        this.pending = new AtomicInteger();
     }
 
     /**
      * Crawl method that adds the initial seed and then calls the workqueue for the
-     * next ones
+     * next ones. If the crawl is journaled and the journal is not empty, the crawl
+     * resumes from the journaled frontier instead of the seed.
+     *
+     * @throws IOException        if an IO error occurs
+     * @throws URISyntaxException if an url syntax error occurs
+     */
+    public void crawl() throws IOException, URISyntaxException {
+        if (journal == null || !resume()) {
+            URL seed = new URL(initialCrawl);
+            visitedUrls.add(seed.toString());
+            schedule(seed);
+        }
+        scheduler.finish();
+
+        if (journal != null) {
+            List<String> spilled;
+            while (!(spilled = journal.reload(maxPending)).isEmpty()) {
+                journal.compact();
+                for (String url : spilled) {
+                    URL link = new URL(url);
+                    pending.incrementAndGet();
+                    scheduler.submit(link, new Task(link));
+                }
+                scheduler.finish();
+            }
+        }
+        log.info("Crawl visited {}", visitedUrls);
+        log.info("Crawl received {} content bytes on the wire, {} bytes decoded", HtmlFetcher.getWireBytes(),
+                HtmlFetcher.getDecodedBytes());
+        if (deduplicator != null) {
+            log.info("Crawl found {}", deduplicator);
+        }
+    }
+
+    /**
+     * Restores the visited set and frontier from the journal. Pages that were
+     * fetched but whose postings are missing from the index are crawled again.
+     *
+     * @return true if the journal had anything to resume
+     * @throws IOException if an IO error occurs
+     */
+    private boolean resume() throws IOException {
+        List<String> frontier = new ArrayList<>();
+        int replayed = journal.replay(url -> visitedUrls.add(url), url -> {
+            if (!index.containsLocation(url)) {
+                frontier.add(url);
+            }
+        }, frontier::add);
+
+        journal.compact();
+        for (String url : frontier) {
+            schedule(new URL(url));
+        }
+        return replayed > 0;
+    }
+
+    /**
+     * Hands the url to the scheduler, or spills it to the journal if too many
+     * urls are already waiting in memory
      *
-     * @throws MalformedURLException if an malformed url exists
-     * @throws URISyntaxException    if an url syntax error occurs
-     */
-    public void crawl() throws MalformedURLException, URISyntaxException {
-        URL seed = new URL(initialCrawl);
-        visitedUrls.add(seed);
-        workQueue.execute(new Task(seed));
-        workQueue.finish();
+     * @param url to crawl
+     * @throws IOException if an IO error occurs
+     */
+    private void schedule(URL url) throws IOException {
+        if (pending.incrementAndGet() <= maxPending) {
+            if (journal != null) {
+                journal.queued(url.toString());
+            }
+            scheduler.submit(url, new Task(url));
+        } else {
+            pending.decrementAndGet();
+            journal.spilled(url.toString());
+        }
     }
 
     /**
      * Recursive crawler method
      *
      * @param base base url
-     * @throws MalformedURLException if an malformed url exists
-     * @throws URISyntaxException    if an url syntax error occurs
+     * @throws IOException        if an IO error occurs
+     * @throws URISyntaxException if an url syntax error occurs
      */
-    public void crawl(URL base) throws MalformedURLException, URISyntaxException {
-        String html = HtmlFetcher.fetch(base, 3);
+    public void crawl(URL base) throws IOException, URISyntaxException {
+        String location = base.toString();
+        CrawlValidators.Validator previous = validators == null ? null : validators.get(location);
+        boolean indexed = previous != null && index.containsLocation(location);
+
+        HtmlFetcher.Page page = indexed
+                ? HtmlFetcher.fetch(base, 3, previous.getEtag(), previous.getLastModified())
+                : HtmlFetcher.fetch(base, 3, null, null);
+
+        if (indexed && page.isNotModified()) {
+            for (String link : previous.getLinks()) {
+                if (visitedUrls.add(link, numOfUrlsToCrawl)) {
+                    schedule(new URL(link));
+                }
+            }
+            fetched(location);
+            return;
+        }
+
+        String html = page.getHtml();
         if (html == null) {
+            if (validators != null && page.isGone()) {
+                // a page that is gone no longer matches its postings, while one
+                // that failed keeps them until a later crawl reaches it
+                validators.remove(location);
+                if (index.containsLocation(location)) {
+                    index.remove(location);
+                }
+            }
+            failed(location);
             return;
         }
         html = HtmlCleaner.stripBlockElements(html);
-        List<URL> listOfUrls = LinkParser.getValidLinks(base, html);
-        synchronized (visitedUrls) {
-            for (URL url : listOfUrls) {
-                if (!visitedUrls.contains(url) && visitedUrls.size() < numOfUrlsToCrawl) {
-                    visitedUrls.add(url);
-                    workQueue.execute(new Task(url));
-                }
+        List<String> links = LinkParser.getLinkStrings(base, html);
+        for (String link : links) {
+            if (visitedUrls.add(link, numOfUrlsToCrawl)) {
+                schedule(new URL(link));
             }
         }
         html = HtmlCleaner.stripHtml(html);
+        List<String> stems = TextFileStemmer.listStems(html);
+
+        if (validators != null) {
+            validators.put(location, page.getEtag(), page.getLastModified(), links);
+        }
+
+        if (deduplicator != null && !deduplicator.canonical(location, stems).equals(location)) {
+            if (validators != null) {
+                index.remove(location);
+            }
+            fetched(location);
+            return;
+        }
+
         int counter = 1;
         ThreadSafeInvertedIndex temp = new ThreadSafeInvertedIndex();
-        for (String stem : TextFileStemmer.listStems(html)) {
-            temp.add(stem, base.toString(), counter);
+        for (String stem : stems) {
+            temp.add(stem, location, counter);
             counter++;
         }
-        index.addAll(temp);
+
+        if (validators != null) {
+            index.replace(location, temp);
+        } else {
+            index.addAll(temp);
+        }
+
+        fetched(location);
+    }
+
+    /**
+     * Records a crawled url in the journal, if the crawl is journaled
+     *
+     * @param location crawled url
+     * @throws IOException if an IO error occurs
+     */
+    private void fetched(String location) throws IOException {
+        if (journal != null) {
+            journal.fetched(location);
+        }
+    }
+
+    /**
+     * Records a url that could not be fetched in the journal, if the crawl is
+     * journaled, so a resumed crawl does not retry it
+     *
+     * @param location url that failed
+     * @throws IOException if an IO error occurs
+     */
+    private void failed(String location) throws IOException {
+        if (journal != null) {
+            journal.failed(location);
+        }
     }
 
     /**
@@ -122,9 +316,21 @@ public class Crawler {
         @Override
         public void run() {
             try {
-                crawl(link);
-            } catch (MalformedURLException | URISyntaxException e) {
-                e.getCause();
+                if (scheduler.isAllowed(link)) {
+                    crawl(link);
+                } else {
+                    log.debug("Skipping {} disallowed by robots.txt", link);
+                    failed(link.toString());
+                }
+            } catch (IOException | URISyntaxException e) {
+                log.warn("Unable to crawl {}: {}", link, e.getMessage());
+                try {
+                    failed(link.toString());
+                } catch (IOException journalError) {
+                    log.warn("Unable to journal {}: {}", link, journalError.getMessage());
+                }
+            } finally {
+                pending.decrementAndGet();
             }
         }
     }
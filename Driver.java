@@ -1,9 +1,10 @@
 package edu.usfca.cs272;
 
 import java.io.IOException;
-import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -45,6 +46,20 @@ public class Driver {
         int PORT = argumentParser.getInteger("-server", 8080);
         Logger log = LogManager.getLogger();
         Server server = null;
+        SearchCache searchCache = null;
+        ScoringModel scoringModel = ScoringModel.forName(argumentParser.getString("-score", "count"));
+        boolean remote = argumentParser.hasFlag("-remote");
+        boolean shardServing = argumentParser.hasFlag("-shardserver");
+        List<RemoteShardIndex> remoteShards = new ArrayList<>();
+        boolean logging = argumentParser.hasFlag("-wal");
+        boolean replicating = argumentParser.hasFlag("-replica");
+        boolean recovering = argumentParser.hasFlag("-recover");
+        WriteAheadLog wal = null;
+        IndexReplica replica = null;
+        IndexManifest manifest = argumentParser.hasFlag("-incremental") ? new IndexManifest() : null;
+        Path incrementalPath = argumentParser.getPath("-incremental", Path.of("incremental"));
+        boolean watching = argumentParser.hasFlag("-watch");
+        IndexWatcher watcher = null;
 
         if (threads < 1) {
             threads = 5;
@@ -54,25 +69,113 @@ public class Driver {
             numOfUrlToCrawl = 1;
         }
 
-        if (multithreading || webcrawling) {
-            ThreadSafeInvertedIndex threadSafeInvertedIndex = new ThreadSafeInvertedIndex();
+        if ((logging || recovering || argumentParser.hasFlag("-sync"))
+                && (remote || argumentParser.hasFlag("-shards"))) {
+            System.out.println("The -wal, -sync and -recover flags only apply to an unsharded local index, "
+                    + "not with -shards or -remote");
+            return;
+        }
+
+        if (remote && (argumentParser.hasFlag("-index") || argumentParser.hasFlag("-counts"))) {
+            System.out.println("The -index and -counts flags are not supported with -remote, "
+                    + "since the postings stay on the shard servers");
+            return;
+        }
+
+        if (multithreading || webcrawling || remote || shardServing || logging || replicating || watching) {
+            if (argumentParser.hasFlag("-cache")) {
+                searchCache = new SearchCache(argumentParser.getInteger("-cache", SearchCache.DEFAULT_CAPACITY));
+            }
+            ThreadSafeInvertedIndex threadSafeInvertedIndex;
+            if (remote) {
+                try {
+                    int timeout = argumentParser.getInteger("-timeout", RemoteShardIndex.DEFAULT_TIMEOUT);
+                    for (String address : argumentParser.getString("-remote", "").split(",")) {
+                        if (!address.isBlank()) {
+                            remoteShards.add(RemoteShardIndex.parse(address, timeout));
+                        }
+                    }
+                    threadSafeInvertedIndex = new ShardedInvertedIndex(remoteShards, searchCache, scoringModel,
+                            argumentParser.hasFlag("-impact"));
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Invalid shard servers for the remote flag: " + e.getMessage());
+                    return;
+                }
+            } else if (argumentParser.hasFlag("-shards")) {
+                threadSafeInvertedIndex = new ShardedInvertedIndex(argumentParser.getInteger("-shards", threads),
+                        searchCache, scoringModel, argumentParser.hasFlag("-impact"));
+            } else {
+                if (logging && !replicating) {
+                    Path walPath = argumentParser.getPath("-wal", Path.of("wal"));
+                    int syncBatch = argumentParser.getInteger("-sync", WriteAheadLog.DEFAULT_SYNC_BATCH);
+                    try {
+                        wal = recovering
+                                ? WriteAheadLog.open(walPath, WriteAheadLog.DEFAULT_CHECKPOINT_BYTES, syncBatch)
+                                : WriteAheadLog.create(walPath, WriteAheadLog.DEFAULT_CHECKPOINT_BYTES, syncBatch);
+                    } catch (IOException e) {
+                        System.out.println("Unable to start the write-ahead log in: " + walPath);
+                        System.out.println(e.getMessage());
+                        return;
+                    }
+                }
+                threadSafeInvertedIndex = new ThreadSafeInvertedIndex(searchCache, scoringModel,
+                        argumentParser.hasFlag("-impact"), wal);
+                if (recovering && wal != null) {
+                    try {
+                        threadSafeInvertedIndex.recover();
+                        System.out.println("Recovered " + threadSafeInvertedIndex.getFileCount().size()
+                                + " locations from the write-ahead log");
+                    } catch (IOException e) {
+                        System.out.println("Unable to recover the index from the write-ahead log");
+                        System.out.println(e.getMessage());
+                        return;
+                    }
+                }
+            }
             invertedIndex = threadSafeInvertedIndex;
             workQueue = new WorkQueue(threads);
             queryFileParser = new ThreadSafeQueryFileParser(threadSafeInvertedIndex, workQueue);
-            indexBuilder = new ThreadSafeInvertedIndexBuilder(threadSafeInvertedIndex, workQueue);
+            indexBuilder = new ThreadSafeInvertedIndexBuilder(threadSafeInvertedIndex, workQueue,
+                    recovering && wal != null, manifest);
+
+            if (replicating && !remote) {
+                Path replicaPath = argumentParser.getPath("-replica", Path.of("wal"));
+                replica = new IndexReplica(threadSafeInvertedIndex, replicaPath);
+                try {
+                    replica.catchUp();
+                    System.out.println("Replica: caught up to LSN " + replica.getAppliedLsn());
+                } catch (IOException e) {
+                    System.out.println("Unable to replicate the write-ahead log in: " + replicaPath);
+                    System.out.println(e.getMessage());
+                }
+                replica.start();
+            }
 
             numOfUrlToCrawl = argumentParser.getInteger("-max", 1);
             initialCrawl = argumentParser.getString("-html");
 
         } else {
-            invertedIndex = new InvertedIndex();
+            invertedIndex = new InvertedIndex(scoringModel, argumentParser.hasFlag("-impact"));
             queryFileParser = new QueryFileParser(invertedIndex);
-            indexBuilder = new InvertedIndexBuilder(invertedIndex);
+            indexBuilder = new InvertedIndexBuilder(invertedIndex, false, manifest);
         }
 
-        if (argumentParser.hasFlag("-text")) {
+        if (argumentParser.hasFlag("-stream")) {
+            queryFileParser = new StreamingQueryFileParser(invertedIndex,
+                    argumentParser.getInteger("-stream", StreamingQueryFileParser.DEFAULT_RUN_BUFFER));
+        }
+
+        if (argumentParser.hasFlag("-text") && !remote && replica == null) {
             if (argumentParser.hasValue("-text")) {
                 path = argumentParser.getPath("-text");
+                if (manifest != null) {
+                    try {
+                        manifest.load(incrementalPath, invertedIndex);
+                    } catch (IOException e) {
+                        System.out.println("Unable to load the incremental index, indexing every file: "
+                                + e.getMessage());
+                    }
+                }
                 try {
                     indexBuilder.build(path);
                 } catch (IOException e) {
@@ -80,21 +183,105 @@ public class Driver {
                             "Unable to build the inverted index with multithreading for path: " + path.toString());
                     System.out.println(e.getCause());
                 }
+                if (manifest != null && manifest.isModified()) {
+                    try {
+                        manifest.save(incrementalPath, invertedIndex);
+                    } catch (IOException e) {
+                        System.out.println("Unable to save the incremental index in: " + incrementalPath);
+                        System.out.println(e.getMessage());
+                    }
+                }
 
             } else {
                 System.out.println("You are missing a value for the text flag");
             }
-        } else {
+        } else if (!remote && replica == null) {
             System.out.println("You are missing the text flag");
         }
 
-        if (webcrawling) {
+        if (webcrawling && !remote && replica == null) {
+            CrawlJournal journal = null;
+            CrawlValidators validators = null;
+            ContentDeduplicator deduplicator = null;
+            Path validatorsPath = argumentParser.getPath("-recrawl", Path.of("recrawl.tsv"));
             try {
-                crawler = new Crawler(invertedIndex, workQueue, numOfUrlToCrawl, initialCrawl);
+                if (argumentParser.hasFlag("-journal")) {
+                    journal = new CrawlJournal(argumentParser.getPath("-journal", Path.of("crawl.journal")));
+                }
+                if (argumentParser.hasFlag("-recrawl")) {
+                    validators = new CrawlValidators();
+                    validators.load(validatorsPath);
+                }
+                HostScheduler scheduler = new HostScheduler(workQueue,
+                        argumentParser.getInteger("-perhost", HostScheduler.DEFAULT_PER_HOST),
+                        argumentParser.getInteger("-delay", (int) HostScheduler.DEFAULT_DELAY));
+                if (argumentParser.hasFlag("-dedup")) {
+                    deduplicator = new ContentDeduplicator(
+                            "simhash".equalsIgnoreCase(argumentParser.getString("-dedup", "exact"))
+                                    ? ContentDeduplicator.Mode.SIMHASH
+                                    : ContentDeduplicator.Mode.EXACT);
+                }
+                crawler = new Crawler(invertedIndex, scheduler, numOfUrlToCrawl, initialCrawl, journal,
+                        Crawler.DEFAULT_MAX_PENDING, validators, deduplicator);
                 crawler.crawl();
-            } catch (MalformedURLException | URISyntaxException e) {
+                if (validators != null) {
+                    validators.save(validatorsPath);
+                }
+                if (deduplicator != null && argumentParser.hasFlag("-aliases")) {
+                    SimpleJsonWriter.writeStringObject(deduplicator.getAliases(),
+                            argumentParser.getPath("-aliases", Path.of("aliases.json")));
+                }
+            } catch (IOException | URISyntaxException e) {
                 System.out.println("Unable to crawl to: " + initialCrawl);
                 e.getCause();
+            } finally {
+                if (journal != null) {
+                    try {
+                        journal.close();
+                    } catch (IOException e) {
+                        System.out.println("Unable to close the crawl journal");
+                    }
+                }
+            }
+        }
+
+        if (wal != null) {
+            try {
+                ((ThreadSafeInvertedIndex) invertedIndex).checkpoint();
+            } catch (IOException e) {
+                System.out.println("Unable to checkpoint the write-ahead log");
+                System.out.println(e.getMessage());
+            }
+        }
+
+        if (watching && path != null && !remote && replica == null) {
+            try {
+                watcher = new IndexWatcher(invertedIndex, path,
+                        argumentParser.getInteger("-watch", IndexWatcher.DEFAULT_DEBOUNCE));
+                watcher.start();
+                System.out.println("Watching for changes under: " + path);
+                if (!shardServing && !argumentParser.hasFlag("-server")) {
+                    watcher.join();
+                }
+            } catch (IOException e) {
+                System.out.println("Unable to watch for changes under: " + path);
+                System.out.println(e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (shardServing) {
+            int shardPort = argumentParser.getInteger("-shardserver", ShardServer.DEFAULT_PORT);
+            try (ShardServer shardServer = new ShardServer(invertedIndex, shardPort)) {
+                shardServer.start();
+                System.out.println("Shard server: listening on PORT:" + shardServer.getPort());
+                shardServer.join();
+            } catch (IOException e) {
+                System.out.println("Cannot start shard server on PORT: " + shardPort);
+                System.out.println(e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         }
 
@@ -159,7 +346,49 @@ public class Driver {
             System.out.println("You are missing the index flag");
         }
 
-        if (multithreading) {
+        if (searchCache != null) {
+            log.info("Search cache: {}", searchCache);
+        }
+
+        for (RemoteShardIndex shard : remoteShards) {
+            log.info("Closing {}", shard);
+            shard.close();
+        }
+
+        if (queryFileParser instanceof StreamingQueryFileParser streaming) {
+            try {
+                streaming.close();
+            } catch (IOException e) {
+                System.out.println("Unable to delete the temporary query results");
+                System.out.println(e.getMessage());
+            }
+        }
+
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                System.out.println("Unable to stop watching for changes");
+            }
+        }
+
+        if (replica != null) {
+            try {
+                replica.close();
+            } catch (IOException e) {
+                System.out.println("Unable to close the replica");
+            }
+        }
+
+        if (wal != null) {
+            try {
+                wal.close();
+            } catch (IOException e) {
+                System.out.println("Unable to close the write-ahead log");
+            }
+        }
+
+        if (workQueue != null) {
             workQueue.shutdown();
         }
     }
@@ -0,0 +1,350 @@
+package edu.usfca.cs272;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Politeness-aware scheduler that sits in front of a {@link WorkQueue}. Urls
+ * are partitioned by host and port, and hosts are served round-robin so a page
+ * with many same-host links does not tie up every worker on one server. Each
+ * host is limited to a number of concurrent fetches and a minimum delay between
+ * fetch starts, and its robots.txt rules are fetched once and cached.
+ *
+ * @author Alessandro Barrera
+ *
+ */
+public class HostScheduler {
+    /** The default number of concurrent fetches per host. */
+    public static final int DEFAULT_PER_HOST = 4;
+
+    /** The default delay in milliseconds between fetches to the same host. */
+    public static final long DEFAULT_DELAY = 0;
+
+    /** Logger used for this class. */
+    private static final Logger log = LogManager.getLogger();
+
+    /**
+     * Work queue running the fetches
+     */
+    private final WorkQueue workQueue;
+
+    /**
+     * Maximum concurrent fetches per host
+     */
+    private final int perHost;
+
+    /**
+     * Minimum delay in milliseconds between fetch starts to the same host
+     */
+    private final long delay;
+
+    /**
+     * Hosts by host and port
+     */
+    private final Map<String, Host> hosts;
+
+    /**
+     * Hosts with queued work, in round-robin order
+     */
+    private final ArrayDeque<Host> ready;
+
+    /**
+     * Cached disallowed path prefixes per host, from robots.txt, completed once
+     * the first task for the host has fetched them
+     */
+    private final Map<String, CompletableFuture<List<String>>> robots;
+
+    /**
+     * Timer used to wake the scheduler when a delayed host becomes available
+     */
+    private final Timer timer;
+
+    /**
+     * Time at which the timer will next wake the scheduler, or 0 if not set
+     */
+    private long wakeup;
+
+    /**
+     * Number of tasks queued or running
+     */
+    private int pending;
+
+    /**
+     * Initializes a scheduler with the default politeness limits
+     *
+     * @param workQueue used to run the fetches
+     */
+    public HostScheduler(WorkQueue workQueue) {
+        this(workQueue, DEFAULT_PER_HOST, DEFAULT_DELAY);
+    }
+
+    /**
+     * Initializes a scheduler
+     *
+     * @param workQueue used to run the fetches
+     * @param perHost   maximum concurrent fetches per host
+     * @param delay     minimum delay in milliseconds between fetches to one host
+     */
+    public HostScheduler(WorkQueue workQueue, int perHost, long delay) {
+        this.workQueue = workQueue;
+        this.perHost = Math.max(1, perHost);
+        this.delay = Math.max(0, delay);
+        this.hosts = new HashMap<>();
+        this.ready = new ArrayDeque<>();
+        this.robots = new ConcurrentHashMap<>();
+        this.timer = new Timer("HostScheduler", true);
+        this.wakeup = 0;
+        this.pending = 0;
+    }
+
+    /**
+     * Queues a task fetching the url. The task runs once its host is allowed
+     * another fetch, and should check {@link #isAllowed(URL)} itself so it can
+     * account for a url robots.txt disallows.
+     *
+     * @param url  fetched by the task
+     * @param task to run
+     */
+    public synchronized void submit(URL url, Runnable task) {
+        String key = url.getHost() + ":" + url.getPort();
+        Host host = hosts.computeIfAbsent(key, Host::new);
+        if (host.tasks.isEmpty()) {
+            ready.addLast(host);
+        }
+        host.tasks.addLast(new Fetch(host, task));
+        pending++;
+        dispatch();
+    }
+
+    /**
+     * Waits until every submitted task has run
+     */
+    public synchronized void finish() {
+        while (pending > 0) {
+            try {
+                this.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the work queue running the fetches
+     *
+     * @return work queue
+     */
+    public WorkQueue getWorkQueue() {
+        return workQueue;
+    }
+
+    /**
+     * Hands one task per eligible host to the work queue, cycling through the
+     * hosts until none can start another fetch. Schedules a wakeup for the first
+     * host still waiting on its delay.
+     */
+    private synchronized void dispatch() {
+        long now = System.currentTimeMillis();
+        long next = Long.MAX_VALUE;
+        int blocked = 0;
+
+        while (blocked < ready.size()) {
+            Host host = ready.pollFirst();
+            if (host.active >= perHost || host.available > now) {
+                if (host.active < perHost) {
+                    next = Math.min(next, host.available);
+                }
+                ready.addLast(host);
+                blocked++;
+                continue;
+            }
+
+            Fetch fetch = host.tasks.pollFirst();
+            host.active++;
+            host.available = now + delay;
+            if (!host.tasks.isEmpty()) {
+                ready.addLast(host);
+            }
+            blocked = 0;
+            workQueue.execute(fetch);
+        }
+
+        if (next != Long.MAX_VALUE && (wakeup == 0 || next < wakeup)) {
+            wakeup = next;
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    synchronized (HostScheduler.this) {
+                        wakeup = 0;
+                        dispatch();
+                    }
+                }
+            }, Math.max(0, next - now));
+        }
+    }
+
+    /**
+     * Marks a fetch to the host as done and starts any work it was blocking
+     *
+     * @param host that finished a fetch
+     */
+    private synchronized void finished(Host host) {
+        host.active--;
+        pending--;
+        dispatch();
+        if (pending == 0) {
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * Checks the cached robots.txt rules of the url's host, fetching them on first
+     * use. Only the first task for a host fetches them, outside the map, and the
+     * others wait for its result.
+     *
+     * @param url to check
+     * @return true if robots.txt allows crawling the url
+     */
+    public boolean isAllowed(URL url) {
+        String key = url.getProtocol() + "://" + url.getAuthority();
+        var future = new CompletableFuture<List<String>>();
+        var cached = robots.putIfAbsent(key, future);
+        if (cached == null) {
+            future.complete(fetchRobots(key));
+            cached = future;
+        }
+        List<String> disallowed = cached.join();
+        String path = url.getFile().isEmpty() ? "/" : url.getFile();
+        for (String prefix : disallowed) {
+            if (path.startsWith(prefix)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fetches robots.txt for the host and returns the path prefixes disallowed for
+     * all user agents. Missing or unreadable robots.txt files allow everything.
+     *
+     * @param root protocol and authority of the host
+     * @return list of disallowed path prefixes
+     */
+    private static List<String> fetchRobots(String root) {
+        List<String> disallowed = new ArrayList<>();
+        try {
+            Map<String, List<String>> response = HttpsFetcher.fetchURL(root + "/robots.txt");
+            if (HtmlFetcher.getStatusCode(response) != 200) {
+                return disallowed;
+            }
+
+            boolean applies = false;
+            for (String line : response.get("Content")) {
+                String[] split = line.replaceFirst("#.*", "").split(":", 2);
+                if (split.length != 2) {
+                    continue;
+                }
+                String field = split[0].strip().toLowerCase();
+                String value = split[1].strip();
+                if (field.equals("user-agent")) {
+                    applies = value.equals("*");
+                } else if (applies && field.equals("disallow") && !value.isEmpty()) {
+                    disallowed.add(value);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.debug("Unable to fetch robots.txt from {}: {}", root, e.getMessage());
+        }
+        return disallowed;
+    }
+
+    /**
+     * Per-host queue and politeness state
+     */
+    private static class Host {
+        /**
+         * Host and port
+         */
+        private final String name;
+
+        /**
+         * Tasks waiting for this host
+         */
+        private final ArrayDeque<Fetch> tasks;
+
+        /**
+         * Number of fetches running against this host
+         */
+        private int active;
+
+        /**
+         * Earliest time the next fetch to this host may start
+         */
+        private long available;
+
+        /**
+         * Initializes an idle host
+         *
+         * @param name host and port
+         */
+        public Host(String name) {
+            this.name = name;
+            this.tasks = new ArrayDeque<>();
+            this.active = 0;
+            this.available = 0;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * Task wrapper that reports back to the scheduler once the task is done
+     */
+    private class Fetch implements Runnable {
+        /**
+         * Host of the url
+         */
+        private final Host host;
+
+        /**
+         * Task to run
+         */
+        private final Runnable task;
+
+        /**
+         * Initializes the wrapper
+         *
+         * @param host of the url fetched by the task
+         * @param task to run
+         */
+        public Fetch(Host host, Runnable task) {
+            this.host = host;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                task.run();
+            } finally {
+                finished(host);
+            }
+        }
+    }
+}
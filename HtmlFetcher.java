@@ -1,15 +1,24 @@
 package edu.usfca.cs272;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.MalformedURLException;
 import java.net.Socket;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * A specialized version of {@link HttpsFetcher} that follows redirects and
@@ -21,6 +30,21 @@ import java.util.Map;
  * @version Spring 2022
  */
 public class HtmlFetcher {
+    /**
+     * Request headers sent with every fetch
+     */
+    private static final Map<String, String> REQUEST_HEADERS = Map.of("Accept-Encoding", "gzip, deflate");
+
+    /**
+     * Total content bytes received over the network, before decoding
+     */
+    private static final AtomicLong wireBytes = new AtomicLong();
+
+    /**
+     * Total content bytes after removing chunking and content encoding
+     */
+    private static final AtomicLong decodedBytes = new AtomicLong();
+
     /**
      * Returns {@code true} if and only if there is a "Content-Type" header and the
      * first value of that header starts with the value "text/html"
@@ -64,57 +88,145 @@ public class HtmlFetcher {
      * @see #getStatusCode(Map)
      */
     public static boolean isRedirect(Map<String, List<String>> headers) {
-        if (getStatusCode(headers) >= 300 && getStatusCode(headers) <= 399) {
+        if (getStatusCode(headers) >= 300 && getStatusCode(headers) <= 399 && headers.containsKey("Location")
+                && !headers.get("Location").isEmpty()) {
             return true;
         }
         return false;
     }
 
     /**
-     * Fetches the resource at the URL using HTTP/1.1 and sockets. If the status
-     * code is 200 and the content type is HTML, returns the HTML as a single
-     * string. If the status code is a valid redirect, will follow that redirect if
-     * the number of redirects is greater than 0. Otherwise, returns {@code null}.
+     * Fetches the resource at the URL using HTTP/1.1 and sockets, accepting gzip
+     * and deflate content encodings. If the status code is 200 and the content
+     * type is HTML, returns the decoded HTML as a single string. If the status
+     * code is a valid redirect, will follow that redirect if the number of
+     * redirects is greater than 0. Otherwise, returns {@code null}.
      *
      * @param url       the url to fetch
      * @param redirects the number of times to follow redirects
      * @return the html or {@code null} if unable to fetch the resource or the
      *         resource is not html
      *
-     * @see HttpsFetcher#openConnection(URL)
-     * @see HttpsFetcher#printGetRequest(PrintWriter, URL)
-     * @see HttpsFetcher#getHeaderFields(BufferedReader)
+     * @see #fetch(URL, int, String, String)
+     */
+    public static String fetch(URL url, int redirects) {
+        return fetch(url, redirects, null, null).getHtml();
+    }
+
+    /**
+     * Fetches the resource at the URL like {@link #fetch(URL, int)}, but as a
+     * conditional GET if an entity tag or last modified date from a previous fetch
+     * is given. The returned page holds the final status code, the html if any,
+     * and the validators sent by the server for the next conditional fetch.
      *
-     * @see String#join(CharSequence, CharSequence...)
+     * @param url          the url to fetch
+     * @param redirects    the number of times to follow redirects
+     * @param etag         the previous "ETag" header value or {@code null}
+     * @param lastModified the previous "Last-Modified" header value or
+     *                     {@code null}
+     * @return the fetched page, with status 304 if the resource is unchanged or
+     *         -1 if unable to fetch the resource
      *
+     * @see HttpsFetcher#openConnection(URL)
+     * @see HttpsFetcher#printGetRequest(PrintWriter, URL, Map)
+     * @see HttpsFetcher#getHeaderFields(InputStream)
+     * @see #getContent(Map, InputStream)
      * @see #isHtml(Map)
      * @see #isRedirect(Map)
      */
-    public static String fetch(URL url, int redirects) {
-        String html = null;
+    public static Page fetch(URL url, int redirects, String etag, String lastModified) {
+        Map<String, String> headers = new LinkedHashMap<>(REQUEST_HEADERS);
+        if (etag != null) {
+            headers.put("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            headers.put("If-Modified-Since", lastModified);
+        }
 
         try (Socket socket = HttpsFetcher.openConnection(url);
                 PrintWriter request = new PrintWriter(socket.getOutputStream());
-                InputStreamReader input = new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8);
-                BufferedReader response = new BufferedReader(input);) {
-            HttpsFetcher.printGetRequest(request, url);
+                InputStream response = new BufferedInputStream(socket.getInputStream());) {
+            HttpsFetcher.printGetRequest(request, url, headers);
 
             Map<String, List<String>> heads = HttpsFetcher.getHeaderFields(response);
-            List<String> listOfResponses = response.lines().toList();
+            int status = getStatusCode(heads);
+            String html = null;
 
-            if (getStatusCode(heads) == 200 && isHtml(heads)) {
-                html = String.join("\n", listOfResponses);
+            if (status == 200 && isHtml(heads)) {
+                try (BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(getContent(heads, response), StandardCharsets.UTF_8))) {
+                    html = reader.lines().collect(Collectors.joining("\n"));
+                }
             }
             if (isRedirect(heads)) {
                 if (redirects > 0) {
-                    html = fetch(new URL(heads.get("Location").get(0)), redirects - 1);
+                    return fetch(new URL(heads.get("Location").get(0)), redirects - 1, etag, lastModified);
                 }
             }
+
+            return new Page(status, html, HttpsFetcher.getHeader(heads, "ETag"),
+                    HttpsFetcher.getHeader(heads, "Last-Modified"));
         } catch (IOException e) {
-            html = null;
+            return new Page(-1, null, null, null);
         }
+    }
+
+    /**
+     * Wraps the raw content stream so it is read without chunked transfer framing
+     * and with any gzip or deflate content encoding decoded on the fly. The bytes
+     * read before and after decoding are added to the fetcher counters.
+     *
+     * @param headers the HTTP/1.1 response headers
+     * @param input   the raw content stream positioned after the headers
+     * @return stream of decoded content
+     * @throws IOException if unable to read the content
+     *
+     * @see #getWireBytes()
+     * @see #getDecodedBytes()
+     */
+    public static InputStream getContent(Map<String, List<String>> headers, InputStream input) throws IOException {
+        InputStream content = new CountingInputStream(input, wireBytes);
 
-        return html;
+        String transfer = HttpsFetcher.getHeader(headers, "Transfer-Encoding");
+        if (transfer != null && transfer.toLowerCase().contains("chunked")) {
+            content = new ChunkedInputStream(content);
+        }
+
+        String encoding = HttpsFetcher.getHeader(headers, "Content-Encoding");
+        encoding = encoding == null ? "" : encoding.strip().toLowerCase();
+        if (encoding.equals("gzip") || encoding.equals("x-gzip")) {
+            content = new GZIPInputStream(content);
+        } else if (encoding.equals("deflate")) {
+            content = new BufferedInputStream(content);
+            content.mark(2);
+            int first = content.read();
+            int second = content.read();
+            content.reset();
+            // servers disagree on whether deflate includes the zlib wrapper
+            boolean zlib = (first & 0x0f) == 8 && ((first << 8) | second) % 31 == 0;
+            content = new InflaterInputStream(content, new Inflater(!zlib));
+        }
+
+        return new CountingInputStream(content, decodedBytes);
+    }
+
+    /**
+     * Returns the number of content bytes received over the network before
+     * decoding, across all fetches
+     *
+     * @return bytes on the wire
+     */
+    public static long getWireBytes() {
+        return wireBytes.get();
+    }
+
+    /**
+     * Returns the number of content bytes after decoding, across all fetches
+     *
+     * @return decoded bytes
+     */
+    public static long getDecodedBytes() {
+        return decodedBytes.get();
     }
 
     /**
@@ -160,4 +272,233 @@ public class HtmlFetcher {
     public static String fetch(URL url) {
         return fetch(url, 0);
     }
+
+    /**
+     * Stream that adds the number of bytes read through it to a counter
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        /**
+         * Counter to add to
+         */
+        private final AtomicLong counter;
+
+        /**
+         * Initializes the counting stream
+         *
+         * @param input   stream to read
+         * @param counter to add the bytes read to
+         */
+        public CountingInputStream(InputStream input, AtomicLong counter) {
+            super(input);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int next = super.read();
+            if (next != -1) {
+                counter.incrementAndGet();
+            }
+            return next;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                counter.addAndGet(read);
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Stream that removes HTTP/1.1 chunked transfer framing
+     */
+    private static class ChunkedInputStream extends FilterInputStream {
+        /**
+         * Bytes left in the current chunk, or -1 once the last chunk was read
+         */
+        private int remaining;
+
+        /**
+         * Initializes the chunked stream
+         *
+         * @param input stream to read positioned at the first chunk size line
+         */
+        public ChunkedInputStream(InputStream input) {
+            super(input);
+            this.remaining = 0;
+        }
+
+        /**
+         * Reads the next chunk size line if the current chunk is exhausted
+         *
+         * @return true if there is chunk content left to read
+         * @throws IOException if unable to read the chunk size
+         */
+        private boolean nextChunk() throws IOException {
+            if (remaining > 0) {
+                return true;
+            }
+            if (remaining < 0) {
+                return false;
+            }
+
+            String line = HttpsFetcher.readLine(in);
+            if (line != null && line.isEmpty()) {
+                // blank line ending the previous chunk
+                line = HttpsFetcher.readLine(in);
+            }
+            if (line == null) {
+                remaining = -1;
+                return false;
+            }
+
+            int extension = line.indexOf(';');
+            String size = (extension < 0 ? line : line.substring(0, extension)).strip();
+            try {
+                remaining = Integer.parseInt(size, 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid chunk size: " + line, e);
+            }
+            if (remaining == 0) {
+                remaining = -1;
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            int next = in.read();
+            if (next != -1) {
+                remaining--;
+            }
+            return next;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!nextChunk()) {
+                return -1;
+            }
+            int read = in.read(buffer, offset, Math.min(length, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return remaining > 0 ? Math.min(remaining, in.available()) : 0;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Result of a conditional fetch
+     */
+    public static class Page {
+        /**
+         * HTTP status code of the final response, or -1 if the fetch failed
+         */
+        private final int status;
+
+        /**
+         * Html content, or null if the response was not html
+         */
+        private final String html;
+
+        /**
+         * Entity tag sent by the server, or null
+         */
+        private final String etag;
+
+        /**
+         * Last modified date sent by the server, or null
+         */
+        private final String lastModified;
+
+        /**
+         * Initializes a fetched page
+         *
+         * @param status       HTTP status code
+         * @param html         html content or null
+         * @param etag         entity tag or null
+         * @param lastModified last modified date or null
+         */
+        public Page(int status, String html, String etag, String lastModified) {
+            this.status = status;
+            this.html = html;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Returns the HTTP status code
+         *
+         * @return status code or -1 if the fetch failed
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * Checks if the server reported the resource as unchanged
+         *
+         * @return true if the status code is 304
+         */
+        public boolean isNotModified() {
+            return status == 304;
+        }
+
+        /**
+         * Checks if the server definitively reported the page as no longer an html
+         * page, as opposed to a fetch that failed and may succeed later
+         *
+         * @return true if the status code is 404 or 410, or 200 without html
+         */
+        public boolean isGone() {
+            return status == 404 || status == 410 || (status == 200 && html == null);
+        }
+
+        /**
+         * Returns the html content
+         *
+         * @return html or null
+         */
+        public String getHtml() {
+            return html;
+        }
+
+        /**
+         * Returns the entity tag
+         *
+         * @return entity tag or null
+         */
+        public String getEtag() {
+            return etag;
+        }
+
+        /**
+         * Returns the last modified date
+         *
+         * @return last modified date or null
+         */
+        public String getLastModified() {
+            return lastModified;
+        }
+    }
 }
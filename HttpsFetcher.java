@@ -1,9 +1,12 @@
 package edu.usfca.cs272;
 
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.MalformedURLException;
@@ -101,11 +104,27 @@ public class HttpsFetcher {
 	 * @throws IOException if unable to write request to socket
 	 */
 	public static void printGetRequest(PrintWriter writer, URL url) throws IOException {
+		printGetRequest(writer, url, Map.of());
+	}
+
+	/**
+	 * Writes a simple HTTP GET request with additional request headers to the
+	 * provided socket writer.
+	 *
+	 * @param writer a writer created from a socket connection
+	 * @param url the url to fetch via the socket connection
+	 * @param headers additional request header names and values
+	 * @throws IOException if unable to write request to socket
+	 */
+	public static void printGetRequest(PrintWriter writer, URL url, Map<String, String> headers) throws IOException {
 		String host = url.getHost();
 		String resource = url.getFile().isEmpty() ? "/" : url.getFile();
 
 		writer.printf("GET %s HTTP/1.1\r\n", resource);
 		writer.printf("Host: %s\r\n", host);
+		for (var header : headers.entrySet()) {
+			writer.printf("%s: %s\r\n", header.getKey(), header.getValue());
+		}
 		writer.printf("Connection: close\r\n");
 		writer.printf("\r\n");
 		writer.flush();
@@ -140,4 +159,70 @@ public class HttpsFetcher {
 
 		return results;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Gets the header fields from the raw input stream of a socket connection,
+	 * leaving the stream positioned at the first byte of the content. Unlike
+	 * {@link #getHeaderFields(BufferedReader)}, this does not read ahead into the
+	 * content, so the content may be binary (for example, compressed).
+	 *
+	 * @param response the input stream of a socket connection
+	 * @return a map of header fields to a list of header values
+	 * @throws IOException if unable to read from socket
+	 */
+	public static Map<String, List<String>> getHeaderFields(InputStream response) throws IOException {
+		Map<String, List<String>> results = new HashMap<>();
+
+		String line = readLine(response);
+		results.put(null, List.of(line == null ? "" : line));
+
+		while ((line = readLine(response)) != null && !line.isBlank()) {
+			String[] split = line.split(":\\s*", 2);
+			if (split.length == 2) {
+				results.putIfAbsent(split[0], new ArrayList<>());
+				results.get(split[0]).add(split[1]);
+			}
+		}
+
+		return results;
+	}
+
+	/**
+	 * Returns the first value of a header, matching the header name without regard
+	 * to case.
+	 *
+	 * @param headers the HTTP/1.1 headers to search
+	 * @param name the header name
+	 * @return the first header value or {@code null} if not present
+	 */
+	public static String getHeader(Map<String, List<String>> headers, String name) {
+		for (var header : headers.entrySet()) {
+			if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+				return header.getValue().get(0);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reads a single CRLF or LF terminated line of ISO-8859-1 text from the
+	 * stream, one byte at a time.
+	 *
+	 * @param input the stream to read
+	 * @return the line without its terminator or {@code null} at end of stream
+	 * @throws IOException if unable to read from the stream
+	 */
+	public static String readLine(InputStream input) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int next;
+		while ((next = input.read()) != -1 && next != '\n') {
+			if (next != '\r') {
+				line.write(next);
+			}
+		}
+		if (next == -1 && line.size() == 0) {
+			return null;
+		}
+		return line.toString(ISO_8859_1);
+	}
+}
@@ -0,0 +1,381 @@
+package edu.usfca.cs272;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Thread-safe record of the size, modification time and content hash of every
+ * file in an index, persisted with the index so the next build only reads the
+ * files that changed. A file whose size and modification time match is not
+ * read at all; one whose modification time changed but whose size did not is
+ * hashed, and only indexed again if the hash differs.
+ *
+ * <p>
+ * Stored in a directory as {@value #INDEX}, the index in the binary form of
+ * {@link InvertedIndex#write(java.io.DataOutputStream)} followed by its CRC-32,
+ * and {@value #MANIFEST}, one tab-separated line per file: the size, the
+ * modification time in nanoseconds, the hash in hexadecimal and the location.
+ *
+ * @author Alessandro Barrera
+ *
+ */
+public class IndexManifest {
+    /** Name of the persisted index in the directory. */
+    public static final String INDEX = "index.bin";
+
+    /** Name of the manifest in the directory. */
+    public static final String MANIFEST = "manifest.tsv";
+
+    /** First four bytes of the persisted index, "IDX" and the format version. */
+    private static final int MAGIC = 0x49445801;
+
+    /**
+     * Nanoseconds before the build within which a modification time is not
+     * trusted, since the file may change again without its time changing on
+     * file systems with coarse timestamps
+     */
+    private static final long RACY_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    /** Logger used for this class. */
+    private static final Logger log = LogManager.getLogger();
+
+    /**
+     * Entries by location
+     */
+    private final Map<String, Entry> entries;
+
+    /**
+     * Number of entries added, updated or removed since the manifest was loaded
+     */
+    private final AtomicLong changes;
+
+    /**
+     * Initializes an empty manifest
+     */
+    public IndexManifest() {
+        this.entries = new ConcurrentHashMap<>();
+        this.changes = new AtomicLong();
+    }
+
+    /**
+     * Returns whether a file is indexed and has not changed since. Updates the
+     * modification time of a file that was only touched.
+     *
+     * @param file to check
+     * @return true if the file does not need to be indexed again
+     * @throws IOException if an IO error occurs
+     */
+    public boolean isUnchanged(Path file) throws IOException {
+        String location = file.toString();
+        Entry entry = entries.get(location);
+        if (entry == null) {
+            return false;
+        }
+
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        if (size != entry.size) {
+            return false;
+        }
+        if (modified == entry.modified) {
+            return true;
+        }
+
+        Entry current = describe(file);
+        if (current.hash != entry.hash) {
+            return false;
+        }
+        put(location, current);
+        return true;
+    }
+
+    /**
+     * Describes a file as it is now, before it is indexed
+     *
+     * @param file to describe
+     * @return entry of the file
+     * @throws IOException if an IO error occurs
+     */
+    public static Entry describe(Path file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        long modified = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        long now = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        if (now - modified < RACY_NANOS) {
+            // forces a hash comparison next time
+            modified = 0;
+        }
+        return new Entry(attributes.size(), modified, hash(file));
+    }
+
+    /**
+     * Returns the 64-bit FNV-1a hash of the bytes of a file, the same hash as
+     * {@link VisitedUrlSet#fingerprint(String)}
+     *
+     * @param file to hash
+     * @return hash of the content
+     * @throws IOException if an IO error occurs
+     */
+    public static long hash(Path file) throws IOException {
+        long hash = 0xcbf29ce484222325L;
+        byte[] buffer = new byte[8192];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    hash ^= buffer[i] & 0xff;
+                    hash *= 0x100000001b3L;
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Records a file once it is indexed
+     *
+     * @param location of the file
+     * @param entry    from {@link #describe(Path)} before the file was read
+     */
+    public void put(String location, Entry entry) {
+        entries.put(location, entry);
+        changes.incrementAndGet();
+    }
+
+    /**
+     * Removes from the index and the manifest every file under the root that no
+     * longer exists
+     *
+     * @param root  of the build
+     * @param index to remove the files from
+     * @return number of files removed
+     */
+    public int removeDeleted(Path root, InvertedIndex index) {
+        int removed = 0;
+        for (String location : new ArrayList<>(entries.keySet())) {
+            Path file = Path.of(location);
+            if (file.startsWith(root) && !Files.exists(file)) {
+                index.remove(location);
+                entries.remove(location);
+                changes.incrementAndGet();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Returns the number of files in the manifest
+     *
+     * @return number of files
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns whether the manifest changed since it was loaded
+     *
+     * @return true if the manifest and index need to be saved
+     */
+    public boolean isModified() {
+        return changes.get() > 0;
+    }
+
+    /**
+     * Loads the persisted index into an index and the manifest of its files. If
+     * either file is missing nothing is loaded, so every file is indexed again.
+     *
+     * @param directory holding the persisted index and manifest
+     * @param index     to load into, usually empty
+     * @return true if the index was loaded
+     * @throws IOException if an IO error occurs or the persisted index is corrupt
+     */
+    public boolean load(Path directory, InvertedIndex index) throws IOException {
+        long start = System.nanoTime();
+        Map<String, Entry> loaded = new ConcurrentHashMap<>();
+        InvertedIndex persisted;
+        try {
+            try (BufferedReader reader = Files.newBufferedReader(directory.resolve(MANIFEST),
+                    StandardCharsets.UTF_8)) {
+                String line = null;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", 4);
+                    if (fields.length == 4) {
+                        loaded.put(fields[3], new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                                Long.parseUnsignedLong(fields[2], 16)));
+                    }
+                }
+            }
+            persisted = read(directory.resolve(INDEX));
+        } catch (NoSuchFileException e) {
+            log.info("No persisted index in {}, indexing every file", directory);
+            return false;
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupt manifest in " + directory, e);
+        }
+
+        if (!persisted.getFileCount().isEmpty()) {
+            index.addAll(persisted);
+        }
+        entries.putAll(loaded);
+        log.info("Loaded {} indexed files from {} in {} ms", loaded.size(), directory,
+                (System.nanoTime() - start) / 1_000_000);
+        return true;
+    }
+
+    /**
+     * Reads a persisted index and checks its CRC
+     *
+     * @param path of the persisted index
+     * @return the index
+     * @throws IOException if an IO error occurs or the index is corrupt
+     */
+    private static InvertedIndex read(Path path) throws IOException {
+        try (CheckedInputStream checked = new CheckedInputStream(
+                new BufferedInputStream(Files.newInputStream(path)), new CRC32());
+                DataInputStream in = new DataInputStream(checked)) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a persisted index: " + path);
+            }
+            InvertedIndex index = InvertedIndex.read(in);
+            int expected = (int) checked.getChecksum().getValue();
+            if (in.readInt() != expected) {
+                throw new IOException("Corrupt persisted index: " + path);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Saves the index and the manifest of its files. Each file is written to a
+     * temporary file, forced to disk and moved in place, the index first, and the
+     * directory is forced after each move. A crash in between leaves a manifest
+     * older than the index, and the next build indexes the files that differ
+     * again.
+     *
+     * @param directory to hold the persisted index and manifest, created if needed
+     * @param index     to save
+     * @throws IOException if an IO error occurs
+     */
+    public void save(Path directory, InvertedIndex index) throws IOException {
+        long start = System.nanoTime();
+        Files.createDirectories(directory);
+
+        Path temp = directory.resolve(INDEX + ".tmp");
+        try (FileChannel file = create(temp);
+                CheckedOutputStream checked = new CheckedOutputStream(
+                        new BufferedOutputStream(Channels.newOutputStream(file)), new CRC32());
+                DataOutputStream out = new DataOutputStream(checked)) {
+            out.writeInt(MAGIC);
+            index.write(out);
+            out.flush();
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            file.force(true);
+        }
+        Files.move(temp, directory.resolve(INDEX), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        WriteAheadLog.forceDirectory(directory);
+
+        temp = directory.resolve(MANIFEST + ".tmp");
+        List<String> locations = new ArrayList<>(entries.keySet());
+        try (FileChannel file = create(temp);
+                BufferedWriter writer = new BufferedWriter(
+                        new OutputStreamWriter(Channels.newOutputStream(file), StandardCharsets.UTF_8))) {
+            for (String location : locations) {
+                Entry entry = entries.get(location);
+                writer.write(Long.toString(entry.size));
+                writer.write('\t');
+                writer.write(Long.toString(entry.modified));
+                writer.write('\t');
+                writer.write(Long.toHexString(entry.hash));
+                writer.write('\t');
+                writer.write(location);
+                writer.write('\n');
+            }
+            writer.flush();
+            file.force(true);
+        }
+        Files.move(temp, directory.resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        WriteAheadLog.forceDirectory(directory);
+
+        changes.set(0);
+        log.info("Saved {} indexed files to {} in {} ms", locations.size(), directory,
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Creates or truncates a temporary file for writing
+     *
+     * @param temp path of the temporary file
+     * @return channel to write and force the file
+     * @throws IOException if an IO error occurs
+     */
+    private static FileChannel create(Path temp) throws IOException {
+        return FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Size, modification time and content hash of an indexed file
+     */
+    public static class Entry {
+        /**
+         * Size in bytes
+         */
+        private final long size;
+
+        /**
+         * Modification time in nanoseconds, or 0 if it is not trusted
+         */
+        private final long modified;
+
+        /**
+         * Hash of the content
+         */
+        private final long hash;
+
+        /**
+         * Initializes an entry
+         *
+         * @param size     in bytes
+         * @param modified time in nanoseconds, or 0 if it is not trusted
+         * @param hash     of the content
+         */
+        public Entry(long size, long modified, long hash) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+}
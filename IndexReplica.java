@@ -0,0 +1,369 @@
+package edu.usfca.cs272;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.usfca.cs272.WriteAheadLog.Checkpoint;
+import edu.usfca.cs272.WriteAheadLog.Record;
+import edu.usfca.cs272.WriteAheadLog.SegmentReader;
+
+/**
+ * Read replica of an index written by another process. It loads the
+ * checkpoint of the primary's {@link WriteAheadLog}, then tails the log and
+ * applies every write in order to its own index, which can be searched
+ * meanwhile. If the primary starts a new log, or checkpoints past writes the
+ * replica has not read yet, the replica reloads from the new checkpoint.
+ *
+ * <p>
+ * Replication lag is measured from the time each record was appended, so it
+ * is only meaningful when both processes share a clock, as on one machine.
+ *
+ * @author Alessandro Barrera
+ *
+ */
+public class IndexReplica implements AutoCloseable {
+    /** Milliseconds the replica waits for new records once it has caught up. */
+    public static final int POLL_INTERVAL = 50;
+
+    /** Logger used for this class. */
+    private static final Logger log = LogManager.getLogger();
+
+    /**
+     * Index the writes are applied to, thread-safe if it is searched meanwhile
+     */
+    private final InvertedIndex index;
+
+    /**
+     * Directory of the log
+     */
+    private final Path directory;
+
+    /**
+     * Thread tailing the log in the background
+     */
+    private final Thread tailer;
+
+    /**
+     * Whether the replica is tailing the log
+     */
+    private volatile boolean running;
+
+    /**
+     * Id of the log being replicated, or 0 before the first checkpoint is loaded
+     */
+    private long logId;
+
+    /**
+     * Segment being read, or null if the next one is not written yet
+     */
+    private SegmentReader segment;
+
+    /**
+     * LSN of the next record to apply
+     */
+    private long nextLsn;
+
+    /**
+     * LSN of the last record applied
+     */
+    private volatile long appliedLsn;
+
+    /**
+     * Number of records applied
+     */
+    private volatile long applied;
+
+    /**
+     * Number of bytes of records applied
+     */
+    private volatile long appliedBytes;
+
+    /**
+     * Nanoseconds spent applying records
+     */
+    private volatile long applyNanos;
+
+    /**
+     * Milliseconds between appending and applying the last record
+     */
+    private volatile long lag;
+
+    /**
+     * Largest lag of any record in milliseconds
+     */
+    private volatile long maxLag;
+
+    /**
+     * Number of checkpoints loaded
+     */
+    private volatile int loads;
+
+    /**
+     * Initializes a replica. Nothing is read until {@link #catchUp()} or
+     * {@link #start()} is called.
+     *
+     * @param index     to apply the writes to
+     * @param directory of the primary's log
+     */
+    public IndexReplica(InvertedIndex index, Path directory) {
+        this.index = index;
+        this.directory = directory;
+        this.tailer = new Thread(this::tail, "index-replica");
+        this.tailer.setDaemon(true);
+    }
+
+    /**
+     * Applies every record written so far, loading the checkpoint first if
+     * needed
+     *
+     * @return number of records applied
+     * @throws IOException if an IO error occurs or the log is corrupt
+     */
+    public synchronized long catchUp() throws IOException {
+        long before = applied;
+        if (logId == 0 && !load()) {
+            return 0;
+        }
+
+        while (true) {
+            if (segment == null && !openSegment()) {
+                if (!reloadNeeded()) {
+                    break;
+                }
+                load();
+                continue;
+            }
+
+            Record record;
+            while ((record = segment.next()) != null) {
+                apply(record);
+            }
+
+            // the primary closes a segment before starting the next one, so once the
+            // next one exists this one is complete
+            if (Files.exists(WriteAheadLog.segment(directory, nextLsn)) && nextLsn > segment.getStart()) {
+                while ((record = segment.next()) != null) {
+                    apply(record);
+                }
+                segment.close();
+                segment = null;
+            } else if (reloadNeeded()) {
+                load();
+            } else {
+                break;
+            }
+        }
+        return applied - before;
+    }
+
+    /**
+     * Starts tailing the log in the background
+     */
+    public void start() {
+        running = true;
+        tailer.start();
+    }
+
+    /**
+     * Tails the log until the replica is closed
+     */
+    private void tail() {
+        while (running) {
+            try {
+                if (catchUp() > 0) {
+                    continue;
+                }
+            } catch (IOException e) {
+                log.warn("Unable to replicate {}: {}", directory, e.getMessage());
+            }
+
+            try {
+                Thread.sleep(POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Loads the checkpoint of the log, replacing everything in the index
+     *
+     * @return true if the checkpoint was loaded, false if there is none yet
+     * @throws IOException if an IO error occurs or the checkpoint is corrupt
+     */
+    private boolean load() throws IOException {
+        long start = System.nanoTime();
+        Checkpoint checkpoint = WriteAheadLog.readCheckpoint(directory, true);
+        if (checkpoint == null) {
+            return false;
+        }
+
+        if (segment != null) {
+            segment.close();
+            segment = null;
+        }
+        // one write, so searches never see the index half loaded
+        index.replaceAll(new ArrayList<>(index.getFileCount().keySet()), checkpoint.snapshot);
+
+        logId = checkpoint.logId;
+        nextLsn = checkpoint.lsn + 1;
+        appliedLsn = checkpoint.lsn;
+        loads++;
+        log.info("Loaded checkpoint of log {} at LSN {} with {} locations in {} ms", Long.toHexString(logId),
+                checkpoint.lsn, checkpoint.snapshot.getFileCount().size(), (System.nanoTime() - start) / 1_000_000);
+        return true;
+    }
+
+    /**
+     * Opens the segment starting at the next LSN
+     *
+     * @return true if the segment was opened, false if it is not written yet
+     * @throws IOException if an IO error occurs
+     */
+    private boolean openSegment() throws IOException {
+        try {
+            segment = new SegmentReader(directory, logId, nextLsn);
+            return true;
+        } catch (NoSuchFileException | EOFException e) {
+            return false;
+        } catch (IOException e) {
+            // a segment of a new log started at the same LSN
+            if (reloadNeeded()) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns whether the primary started a new log, or checkpointed past the
+     * next record so the segment holding it may be gone
+     *
+     * @return true if the checkpoint must be loaded again
+     * @throws IOException if an IO error occurs
+     */
+    private boolean reloadNeeded() throws IOException {
+        Checkpoint checkpoint = WriteAheadLog.readCheckpoint(directory, false);
+        return checkpoint != null && (checkpoint.logId != logId || checkpoint.lsn >= nextLsn);
+    }
+
+    /**
+     * Applies one record to the index
+     *
+     * @param record to apply
+     * @throws IOException if the record is corrupt
+     */
+    private void apply(Record record) throws IOException {
+        long start = System.nanoTime();
+        WriteAheadLog.apply(record.in, index);
+        applyNanos += System.nanoTime() - start;
+
+        long delay = System.currentTimeMillis() - record.time;
+        lag = delay;
+        maxLag = Math.max(maxLag, delay);
+        appliedLsn = record.lsn;
+        appliedBytes += record.size;
+        applied++;
+        nextLsn = record.lsn + 1;
+    }
+
+    /**
+     * Returns the LSN of the last record applied
+     *
+     * @return applied LSN
+     */
+    public long getAppliedLsn() {
+        return appliedLsn;
+    }
+
+    /**
+     * Returns the number of records applied
+     *
+     * @return records applied
+     */
+    public long getApplied() {
+        return applied;
+    }
+
+    /**
+     * Returns the milliseconds between appending and applying the last record
+     *
+     * @return lag in milliseconds
+     */
+    public long getLag() {
+        return lag;
+    }
+
+    /**
+     * Returns the largest lag of any record applied
+     *
+     * @return maximum lag in milliseconds
+     */
+    public long getMaxLag() {
+        return maxLag;
+    }
+
+    /**
+     * Returns the number of records applied per second spent applying them
+     *
+     * @return replay throughput
+     */
+    public long getReplayRate() {
+        return applyNanos > 0 ? (long) (applied / (applyNanos / 1e9)) : 0;
+    }
+
+    /**
+     * Returns the number of bytes of the log not applied yet
+     *
+     * @return bytes behind the primary
+     * @throws IOException if an IO error occurs
+     */
+    public synchronized long getBytesBehind() throws IOException {
+        long behind = 0;
+        long start = segment != null ? segment.getStart() : nextLsn;
+        for (long segmentStart : WriteAheadLog.segments(directory)) {
+            if (segmentStart >= start) {
+                try {
+                    behind += Files.size(WriteAheadLog.segment(directory, segmentStart));
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+            }
+        }
+        return Math.max(0, behind - (segment != null ? segment.getPosition() : 0));
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        tailer.interrupt();
+        try {
+            tailer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            if (segment != null) {
+                segment.close();
+                segment = null;
+            }
+        }
+        log.info("Closing {}", this);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "replica of %s at LSN %d: %d records and %d bytes applied (%d records/sec), lag %d ms (max %d ms), %d checkpoints loaded",
+                directory, appliedLsn, applied, appliedBytes, getReplayRate(), lag, maxLag, loads);
+    }
+}
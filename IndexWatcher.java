@@ -0,0 +1,301 @@
+package edu.usfca.cs272;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Keeps an index up to date with a directory tree while it is searched. Text
+ * files that are created or modified are indexed again, and files that are
+ * deleted are removed, including every file under a deleted directory.
+ *
+ * <p>
+ * Events are debounced: once one arrives, the watcher keeps collecting until
+ * no event has arrived for the debounce interval, or until
+ * {@link #MAX_DELAY_FACTOR} intervals have passed, so a burst of writes is
+ * applied as one {@link InvertedIndex#replaceAll(java.util.Collection, InvertedIndex)}
+ * instead of taking the write lock once per event. A file written several
+ * times in the burst is only read once.
+ *
+ * @author Alessandro Barrera
+ *
+ */
+public class IndexWatcher implements AutoCloseable {
+    /** The default milliseconds without events before a batch is applied. */
+    public static final int DEFAULT_DEBOUNCE = 250;
+
+    /** Longest a batch waits for events to stop, in debounce intervals. */
+    public static final int MAX_DELAY_FACTOR = 20;
+
+    /** Logger used for this class. */
+    private static final Logger log = LogManager.getLogger();
+
+    /**
+     * Index kept up to date, thread-safe if it is searched meanwhile
+     */
+    private final InvertedIndex index;
+
+    /**
+     * Root of the watched tree
+     */
+    private final Path root;
+
+    /**
+     * Milliseconds without events before a batch is applied
+     */
+    private final long debounce;
+
+    /**
+     * Service watching the directories
+     */
+    private final WatchService watchService;
+
+    /**
+     * Watched directories by their key
+     */
+    private final Map<WatchKey, Path> directories;
+
+    /**
+     * Thread applying the events in the background
+     */
+    private final Thread thread;
+
+    /**
+     * Number of events received
+     */
+    private volatile long events;
+
+    /**
+     * Number of batches applied
+     */
+    private volatile long batches;
+
+    /**
+     * Number of files indexed again
+     */
+    private volatile long indexed;
+
+    /**
+     * Number of files removed
+     */
+    private volatile long removed;
+
+    /**
+     * Initializes a watcher. Nothing is watched until {@link #start()} is called.
+     *
+     * @param index    to keep up to date
+     * @param root     of the tree the index was built from
+     * @param debounce milliseconds without events before a batch is applied
+     * @throws IOException if the watch service cannot be started
+     */
+    public IndexWatcher(InvertedIndex index, Path root, long debounce) throws IOException {
+        this.index = index;
+        this.root = root;
+        this.debounce = debounce;
+        this.watchService = root.getFileSystem().newWatchService();
+        this.directories = new ConcurrentHashMap<>();
+        this.thread = new Thread(this::watch, "index-watcher");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Watches every directory of the tree and starts applying events in the
+     * background
+     *
+     * @throws IOException if a directory cannot be watched
+     */
+    public void start() throws IOException {
+        register(root, null);
+        log.info("Watching {} directories under {}", directories.size(), root);
+        thread.start();
+    }
+
+    /**
+     * Waits until the watcher is closed
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void join() throws InterruptedException {
+        thread.join();
+    }
+
+    /**
+     * Watches a directory and every directory under it
+     *
+     * @param directory to watch
+     * @param files     collecting the text files found, or null
+     * @throws IOException if a directory cannot be watched
+     */
+    private void register(Path directory, Set<Path> files) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+
+        WatchKey key = directory.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        directories.put(key, directory);
+        try (DirectoryStream<Path> listing = Files.newDirectoryStream(directory)) {
+            for (Path path : listing) {
+                if (Files.isDirectory(path)) {
+                    register(path, files);
+                } else if (files != null && InvertedIndexBuilder.isTextFile(path)) {
+                    files.add(path);
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects and applies batches of events until the watcher is closed
+     */
+    private void watch() {
+        try {
+            while (true) {
+                Set<Path> changed = new LinkedHashSet<>();
+                collect(watchService.take(), changed);
+
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(debounce * MAX_DELAY_FACTOR);
+                WatchKey key;
+                while (System.nanoTime() < deadline
+                        && (key = watchService.poll(debounce, TimeUnit.MILLISECONDS)) != null) {
+                    collect(key, changed);
+                }
+                apply(changed);
+            }
+        } catch (ClosedWatchServiceException e) {
+            log.debug("Stopped watching {}", root);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Collects the paths changed by the events of a key
+     *
+     * @param key     signalled
+     * @param changed paths changed so far
+     */
+    private void collect(WatchKey key, Set<Path> changed) {
+        Path directory = directories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            events++;
+            if (event.kind() == OVERFLOW) {
+                // events were lost, so everything is checked again
+                log.warn("Missed events under {}, checking every file", directory);
+                changed.add(root);
+            } else if (directory != null) {
+                changed.add(directory.resolve((Path) event.context()));
+            }
+        }
+        if (!key.reset()) {
+            directories.remove(key);
+        }
+    }
+
+    /**
+     * Indexes the changed paths and applies them to the index in one write
+     *
+     * @param changed paths created, modified or deleted
+     */
+    private void apply(Set<Path> changed) {
+        long start = System.nanoTime();
+        Set<Path> files = new LinkedHashSet<>();
+        Set<String> replaced = new LinkedHashSet<>();
+        List<Path> deleted = new ArrayList<>();
+        for (Path path : changed) {
+            if (Files.isDirectory(path)) {
+                // a new directory may have files in it before it is watched
+                try {
+                    register(path, files);
+                } catch (IOException e) {
+                    log.warn("Unable to watch {}: {}", path, e.getMessage());
+                }
+            } else if (InvertedIndexBuilder.isTextFile(path) && Files.exists(path)) {
+                files.add(path);
+            }
+
+            if (path.equals(root)) {
+                deleted.add(path);
+            } else if (!Files.exists(path)) {
+                if (index.containsLocation(path.toString())) {
+                    replaced.add(path.toString());
+                } else {
+                    // may be a directory that held indexed files
+                    deleted.add(path);
+                }
+            }
+        }
+
+        if (!deleted.isEmpty()) {
+            for (String location : new ArrayList<>(index.getFileCount().keySet())) {
+                Path indexed = Path.of(location);
+                for (Path path : deleted) {
+                    if (indexed.startsWith(path) && !Files.exists(indexed)) {
+                        replaced.add(location);
+                        break;
+                    }
+                }
+            }
+        }
+
+        InvertedIndex local = new InvertedIndex();
+        List<String> failed = new ArrayList<>();
+        for (Path file : files) {
+            replaced.add(file.toString());
+            try {
+                InvertedIndexBuilder.indexWriter(file, local);
+            } catch (IOException e) {
+                failed.add(file.toString());
+            }
+        }
+
+        if (replaced.isEmpty()) {
+            return;
+        }
+        index.replaceAll(replaced, local);
+
+        int indexedFiles = local.getFileCount().size();
+        indexed += indexedFiles;
+        removed += replaced.size() - indexedFiles;
+        batches++;
+        log.info("Applied {} changed files ({} indexed, {} removed, {} unreadable) in {} ms", replaced.size(),
+                indexedFiles, replaced.size() - indexedFiles, failed.size(),
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.info("Closing {}", this);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("watcher of %s: %d events applied in %d batches, %d files indexed and %d removed",
+                root, events, batches, indexed, removed);
+    }
+}
@@ -1,18 +1,28 @@
 package edu.usfca.cs272;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
 
 /**
  *
@@ -52,6 +62,20 @@ public class InvertedIndex {
             this.score = 0.0;
         }
 
+        /**
+         * Constructor of a result already scored elsewhere, such as by a remote
+         * shard
+         *
+         * @param location   file location
+         * @param queryCount number of matches in the location
+         * @param score      of the location
+         */
+        public SingleSearchResult(String location, int queryCount, double score) {
+            this.location = location;
+            this.queryCount = queryCount;
+            this.score = score;
+        }
+
         @Override
         public int compareTo(SingleSearchResult o) {
             if (this.score != o.score) {
@@ -98,12 +122,13 @@ public class InvertedIndex {
         /**
          * Update method for the query count and the score
          *
-         * @param word passed in to look up the query count
-         *
+         * @param weight    of the matched word from the scoring model
+         * @param frequency number of times the word occurs in this location
          */
-        private void update(String word) {
-            this.queryCount += wordMap.get(word).get(location).size();
-            this.score = this.queryCount / (double) fileCount.get(location);
+        private void update(double weight, int frequency) {
+            this.queryCount += frequency;
+            this.score = model.update(this.score, weight, this.queryCount, frequency, fileCount.get(location),
+                    averageLength());
         }
 
     }
@@ -119,12 +144,83 @@ public class InvertedIndex {
      */
     private final TreeMap<String, TreeMap<String, TreeSet<Integer>>> wordMap;
 
+    /**
+     * Map containing the file location as key and the words found in that
+     * location as value, used to remove a location without scanning every word
+     */
+    private final Map<String, Set<String>> locationWords;
+
+    /**
+     * Model used to score search results
+     */
+    private final ScoringModel model;
+
+    /**
+     * Sum of the word counts of every location
+     */
+    private long totalLength;
+
+    /**
+     * Largest score contribution of each word over its locations, computed on
+     * first use by top-K search and discarded by every write
+     */
+    private volatile Map<String, Double> bounds;
+
+    /**
+     * Postings of each word ordered by descending score contribution, built on
+     * first use by impact-ordered search and discarded by every write
+     */
+    private volatile Map<String, Impacts> impacts;
+
+    /**
+     * Whether top-K search walks impact-ordered postings instead of using WAND
+     */
+    private final boolean impactOrdered;
+
+    /**
+     * Relative slack on score bounds so rounding never prunes a result that
+     * belongs in the top K
+     */
+    private static final double BOUND_SLACK = 1e-9;
+
+    /**
+     * Number of postings below which partial search stays on the calling thread,
+     * and the least number of postings per range it is split into otherwise
+     */
+    public static final int PARALLEL_POSTINGS = 50_000;
+
     /**
      * Constructor to initialize inverted index data structure
      */
     public InvertedIndex() {
+        this(ScoringModel.COUNT);
+    }
+
+    /**
+     * Constructor to initialize inverted index data structure
+     *
+     * @param model used to score search results
+     */
+    public InvertedIndex(ScoringModel model) {
+        this(model, false);
+    }
+
+    /**
+     * Constructor to initialize inverted index data structure
+     *
+     * @param model         used to score search results
+     * @param impactOrdered whether top-K search walks postings ordered by score
+     *                      contribution instead of by location
+     */
+    public InvertedIndex(ScoringModel model, boolean impactOrdered) {
         wordMap = new TreeMap<>();
         fileCount = new TreeMap<>();
+        locationWords = new HashMap<>();
+        this.model = model;
+        this.totalLength = 0;
+        this.bounds = new ConcurrentHashMap<>();
+        this.impacts = new ConcurrentHashMap<>();
+        this.impactOrdered = impactOrdered;
     }
 
     /**
@@ -138,10 +234,12 @@ public class InvertedIndex {
         wordMap.putIfAbsent(word, new TreeMap<>());
         wordMap.get(word).putIfAbsent(location, new TreeSet<>());
         wordMap.get(word).get(location).add(position);
+        locationWords.computeIfAbsent(location, key -> new HashSet<>()).add(word);
 
         if (fileCount.getOrDefault(location, 0) < position) {
-            fileCount.put(location, position);
+            putCount(location, position);
         }
+        clearScoreCaches();
 
     }
 
@@ -166,31 +264,272 @@ public class InvertedIndex {
      */
     public void addAll(InvertedIndex local) {
 
-        for (String word : local.wordMap.keySet()) {
-            if (!wordMap.containsKey(word)) {
-                wordMap.put(word, local.wordMap.get(word));
-            } else {
-                for (String location : local.wordMap.get(word).keySet()) {
-                    if (!wordMap.get(word).containsKey(location)) {
-                        wordMap.get(word).put(location, local.wordMap.get(word).get(location));
-                    } else {
-                        wordMap.get(word).get(location).addAll(local.wordMap.get(word).get(location));
-                    }
+        // one lookup per word and location, since a batch of files merges many words
+        for (var entry : local.wordMap.entrySet()) {
+            TreeMap<String, TreeSet<Integer>> locations = wordMap.putIfAbsent(entry.getKey(), entry.getValue());
+            if (locations == null) {
+                continue;
+            }
+            for (var posting : entry.getValue().entrySet()) {
+                TreeSet<Integer> positions = locations.putIfAbsent(posting.getKey(), posting.getValue());
+                if (positions != null) {
+                    positions.addAll(posting.getValue());
                 }
             }
         }
 
-        for (String location : local.fileCount.keySet()) {
-            if (!fileCount.containsKey(location)) {
-                fileCount.put(location, local.fileCount.get(location));
-            } else {
-                int total = fileCount.get(location) + local.fileCount.get(location);
-                if (fileCount.getOrDefault(location, 0) < total) {
-                    fileCount.put(location, total);
+        for (var entry : local.locationWords.entrySet()) {
+            locationWords.computeIfAbsent(entry.getKey(), key -> new HashSet<>()).addAll(entry.getValue());
+        }
+
+        for (var entry : local.fileCount.entrySet()) {
+            Integer count = fileCount.get(entry.getKey());
+            if (count == null) {
+                putCount(entry.getKey(), entry.getValue());
+            } else if (count < count + entry.getValue()) {
+                putCount(entry.getKey(), count + entry.getValue());
+            }
+        }
+        clearScoreCaches();
+
+    }
+
+    /**
+     * Sets the word count of a location, keeping the total word count up to date
+     *
+     * @param location to update
+     * @param count    number of words in the location
+     */
+    private void putCount(String location, int count) {
+        Integer previous = fileCount.put(location, count);
+        totalLength += count - (previous == null ? 0 : previous);
+    }
+
+    /**
+     * Returns the average number of words per location
+     *
+     * @return average word count, or 0 if the index is empty
+     */
+    private double averageLength() {
+        return fileCount.isEmpty() ? 0 : totalLength / (double) fileCount.size();
+    }
+
+    /**
+     * Returns the weight of a query word under the scoring model
+     *
+     * @param locations postings of the word
+     * @return weight of the word
+     */
+    private double weight(TreeMap<String, TreeSet<Integer>> locations) {
+        return model.weight(locations.size(), fileCount.size());
+    }
+
+    /**
+     * Discards the score bounds and impact-ordered postings after a write
+     */
+    private void clearScoreCaches() {
+        if (!bounds.isEmpty()) {
+            bounds = new ConcurrentHashMap<>();
+        }
+        if (!impacts.isEmpty()) {
+            impacts = new ConcurrentHashMap<>();
+        }
+    }
+
+    /**
+     * Returns the postings of a word ordered by descending score contribution
+     *
+     * @param word      to order
+     * @param locations postings of the word
+     * @param weight    of the word from the scoring model
+     * @return impact-ordered postings
+     */
+    private Impacts impacts(String word, TreeMap<String, TreeSet<Integer>> locations, double weight) {
+        Map<String, Impacts> current = impacts;
+        Impacts ordered = current.get(word);
+        if (ordered == null) {
+            double average = averageLength();
+            List<Entry<String, Double>> entries = new ArrayList<>(locations.size());
+            for (var entry : locations.entrySet()) {
+                entries.add(Map.entry(entry.getKey(),
+                        model.contribution(weight, entry.getValue().size(), fileCount.get(entry.getKey()), average)));
+            }
+            entries.sort((one, two) -> Double.compare(two.getValue(), one.getValue()));
+            ordered = new Impacts(entries);
+            current.put(word, ordered);
+        }
+        return ordered;
+    }
+
+    /**
+     * Returns the largest score contribution of a word over its locations
+     *
+     * @param word      to bound
+     * @param locations postings of the word
+     * @param weight    of the word from the scoring model
+     * @return upper bound of the score the word adds to any location
+     */
+    private double bound(String word, TreeMap<String, TreeSet<Integer>> locations, double weight) {
+        Map<String, Double> current = bounds;
+        Double bound = current.get(word);
+        if (bound == null) {
+            double average = averageLength();
+            double max = 0;
+            for (var entry : locations.entrySet()) {
+                max = Math.max(max,
+                        model.contribution(weight, entry.getValue().size(), fileCount.get(entry.getKey()), average));
+            }
+            bound = max;
+            current.put(word, bound);
+        }
+        return bound;
+    }
+
+    /**
+     * Returns the model used to score search results
+     *
+     * @return scoring model
+     */
+    public ScoringModel getScoringModel() {
+        return model;
+    }
+
+    /**
+     * Removes every posting and the word count of a location. Only the words found
+     * in that location are visited.
+     *
+     * @param location to remove
+     * @return true if the location was in the index
+     */
+    public boolean remove(String location) {
+        Set<String> words = locationWords.remove(location);
+        Integer count = fileCount.remove(location);
+        if (count != null) {
+            totalLength -= count;
+        }
+        clearScoreCaches();
+        if (words == null) {
+            return false;
+        }
+
+        for (String word : words) {
+            TreeMap<String, TreeSet<Integer>> locations = wordMap.get(word);
+            locations.remove(location);
+            if (locations.isEmpty()) {
+                wordMap.remove(word);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the postings of a location with the postings in the local index
+     *
+     * @param location to replace
+     * @param local    Inverted Index holding only the new postings of the location
+     */
+    public void replace(String location, InvertedIndex local) {
+        remove(location);
+        addAll(local);
+    }
+
+    /**
+     * Replaces the postings of several locations with the postings in the local
+     * index, removing the locations it does not hold
+     *
+     * @param locations to replace
+     * @param local     Inverted Index holding only the new postings of the
+     *                  locations
+     */
+    public void replaceAll(Collection<String> locations, InvertedIndex local) {
+        for (String location : locations) {
+            remove(location);
+        }
+        addAll(local);
+    }
+
+    /**
+     * Returns a deep copy of the postings and word counts of the locations
+     * accepted by the filter, sharing no data with this index
+     *
+     * @param locations filter of the locations to copy
+     * @return new index with the same scoring model
+     */
+    public InvertedIndex copy(Predicate<String> locations) {
+        InvertedIndex copy = new InvertedIndex(model, impactOrdered);
+        for (var entry : locationWords.entrySet()) {
+            String location = entry.getKey();
+            if (!locations.test(location)) {
+                continue;
+            }
+
+            for (String word : entry.getValue()) {
+                copy.wordMap.computeIfAbsent(word, key -> new TreeMap<>()).put(location,
+                        new TreeSet<>(wordMap.get(word).get(location)));
+            }
+            copy.locationWords.put(location, new HashSet<>(entry.getValue()));
+            copy.putCount(location, fileCount.get(location));
+        }
+        return copy;
+    }
+
+    /**
+     * Writes the postings and word counts in a binary form read back by
+     * {@link #read(DataInputStream)}, one location at a time: its name, word
+     * count and number of words, then each word with its positions.
+     *
+     * @param out stream to write
+     * @throws IOException if an IO error occurs
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(fileCount.size());
+        for (var entry : fileCount.entrySet()) {
+            String location = entry.getKey();
+            Set<String> words = locationWords.getOrDefault(location, Collections.emptySet());
+            out.writeUTF(location);
+            out.writeInt(entry.getValue());
+            out.writeInt(words.size());
+            for (String word : words) {
+                TreeSet<Integer> positions = wordMap.get(word).get(location);
+                out.writeUTF(word);
+                out.writeInt(positions.size());
+                for (int position : positions) {
+                    out.writeInt(position);
                 }
             }
         }
+    }
 
+    /**
+     * Reads postings and word counts written by {@link #write(DataOutputStream)}
+     * into a new index, to be merged with {@link #addAll(InvertedIndex)}
+     *
+     * @param in stream to read
+     * @return new index with the default scoring model
+     * @throws IOException if an IO error occurs
+     */
+    public static InvertedIndex read(DataInputStream in) throws IOException {
+        InvertedIndex index = new InvertedIndex();
+        int locations = in.readInt();
+        for (int i = 0; i < locations; i++) {
+            String location = in.readUTF();
+            int count = in.readInt();
+            int words = in.readInt();
+            Set<String> locationWords = new HashSet<>();
+            for (int j = 0; j < words; j++) {
+                String word = in.readUTF();
+                int size = in.readInt();
+                TreeSet<Integer> positions = new TreeSet<>();
+                for (int k = 0; k < size; k++) {
+                    positions.add(in.readInt());
+                }
+                index.wordMap.computeIfAbsent(word, key -> new TreeMap<>()).put(location, positions);
+                locationWords.add(word);
+            }
+            index.locationWords.put(location, locationWords);
+            index.putCount(location, count);
+        }
+        return index;
     }
 
     /**
@@ -226,6 +565,16 @@ public class InvertedIndex {
         return contains(word, location) && wordMap.get(word).get(location).contains(index);
     }
 
+    /**
+     * Returns boolean value depending if any word was found in the location
+     *
+     * @param location to check
+     * @return true if the location has postings in the index
+     */
+    public boolean containsLocation(String location) {
+        return locationWords.containsKey(location);
+    }
+
     /**
      * Exact search method that puts the word and it's list of search results in the
      * map
@@ -238,8 +587,7 @@ public class InvertedIndex {
         List<SingleSearchResult> searchResults = new ArrayList<>();
         for (String word : parsedWords) {
             if (wordMap.containsKey(word)) {
-                var iterator = wordMap.get(word).entrySet().iterator();
-                searchHelper(iterator, queryMap, searchResults, word);
+                searchHelper(wordMap.get(word), queryMap, searchResults);
             }
         }
 
@@ -249,41 +597,211 @@ public class InvertedIndex {
 
     /**
      * Partial search method that puts the word and it's list of search results in
-     * the map
+     * the map. A short prefix can match thousands of words, so once the matched
+     * words have more than {@link #PARALLEL_POSTINGS} postings the locations are
+     * split into ranges scored in parallel on the common fork-join pool. Each
+     * range walks every matched word in query order, so every location is scored
+     * exactly as a sequential search would score it.
      *
      * @param parsedWords list of parsed words
      * @return List of type SingleSearchResult
      */
     public List<SingleSearchResult> partialSearch(Set<String> parsedWords) {
-        HashMap<String, SingleSearchResult> queryMap = new HashMap<>();
-
-        List<SingleSearchResult> searchResults = new ArrayList<>();
+        List<TreeMap<String, TreeSet<Integer>>> matches = new ArrayList<>();
+        TreeMap<String, TreeSet<Integer>> largest = null;
+        long postings = 0;
         for (String word : parsedWords) {
             var entry = wordMap.tailMap(word).entrySet().iterator();
             while (entry.hasNext()) {
                 var key = entry.next();
                 if (key.getKey().startsWith(word)) {
-                    searchHelper(key.getValue().entrySet().iterator(), queryMap, searchResults, key.getKey());
+                    matches.add(key.getValue());
+                    postings += key.getValue().size();
+                    if (largest == null || key.getValue().size() > largest.size()) {
+                        largest = key.getValue();
+                    }
                 } else {
                     break;
                 }
             }
         }
 
+        int ranges = (int) Math.min(postings / PARALLEL_POSTINGS, ForkJoinPool.getCommonPoolParallelism() * 4L);
+        if (ranges < 2) {
+            List<SingleSearchResult> searchResults = score(matches, null, null);
+            Collections.sort(searchResults);
+            return searchResults;
+        }
+
+        List<String> bounds = new ArrayList<>();
+        bounds.add(null);
+        int step = 0;
+        for (String location : largest.keySet()) {
+            if (step++ == largest.size() * bounds.size() / ranges) {
+                bounds.add(location);
+            }
+        }
+        bounds.add(null);
+
+        List<SingleSearchResult> searchResults = ForkJoinPool.commonPool()
+                .invoke(new PartialSearchTask(matches, bounds, 0, bounds.size() - 1));
         Collections.sort(searchResults);
+        restoreTies(searchResults, matches);
+        return searchResults;
+    }
+
+    /**
+     * Scores the locations in a range against the matched words
+     *
+     * @param matches postings of the matched words in query order
+     * @param from    first location of the range, or null for no lower bound
+     * @param to      end of the range, exclusive, or null for no upper bound
+     * @return unsorted list of search results
+     */
+    private List<SingleSearchResult> score(List<TreeMap<String, TreeSet<Integer>>> matches, String from,
+            String to) {
+        HashMap<String, SingleSearchResult> queryMap = new HashMap<>();
+        List<SingleSearchResult> searchResults = new ArrayList<>();
+        for (TreeMap<String, TreeSet<Integer>> locations : matches) {
+            NavigableMap<String, TreeSet<Integer>> range = locations;
+            if (from != null) {
+                range = range.tailMap(from, true);
+            }
+            if (to != null) {
+                range = range.headMap(to, false);
+            }
+            if (range.isEmpty()) {
+                continue;
+            }
+
+            double weight = weight(locations);
+            for (var entry : range.entrySet()) {
+                SingleSearchResult result = queryMap.get(entry.getKey());
+                if (result == null) {
+                    result = new SingleSearchResult(entry.getKey());
+                    queryMap.put(entry.getKey(), result);
+                    searchResults.add(result);
+                }
+                result.update(weight, entry.getValue().size());
+            }
+        }
         return searchResults;
     }
 
+    /**
+     * Puts results that compare equal, which only happens for locations differing
+     * in case, back in the order a sequential search finds them: by the first
+     * matched word, then by location.
+     *
+     * @param searchResults sorted list of search results
+     * @param matches       postings of the matched words in query order
+     */
+    private static void restoreTies(List<SingleSearchResult> searchResults,
+            List<TreeMap<String, TreeSet<Integer>>> matches) {
+        int start = 0;
+        for (int i = 1; i <= searchResults.size(); i++) {
+            if (i == searchResults.size() || searchResults.get(i).compareTo(searchResults.get(start)) != 0) {
+                if (i - start > 1) {
+                    searchResults.subList(start, i).sort((one, two) -> {
+                        int first = Integer.compare(firstMatch(matches, one.location),
+                                firstMatch(matches, two.location));
+                        return first != 0 ? first : one.location.compareTo(two.location);
+                    });
+                }
+                start = i;
+            }
+        }
+    }
+
+    /**
+     * Returns the first matched word containing a location
+     *
+     * @param matches  postings of the matched words in query order
+     * @param location to find
+     * @return index of the first matched word containing the location
+     */
+    private static int firstMatch(List<TreeMap<String, TreeSet<Integer>>> matches, String location) {
+        for (int i = 0; i < matches.size(); i++) {
+            if (matches.get(i).containsKey(location)) {
+                return i;
+            }
+        }
+        return matches.size();
+    }
+
+    /**
+     * Scores a group of location ranges of a partial search, splitting the group
+     * in half until it has one range. The thread running the search holds the
+     * read lock of a thread-safe index for the whole search, so the tasks read
+     * the index without locking.
+     */
+    private class PartialSearchTask extends RecursiveTask<List<SingleSearchResult>> {
+        /** Class version for serialization. */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Postings of the matched words in query order
+         */
+        private final List<TreeMap<String, TreeSet<Integer>>> matches;
+
+        /**
+         * Bounds of the location ranges, null for the open ends
+         */
+        private final List<String> bounds;
+
+        /**
+         * First range of the group
+         */
+        private final int start;
+
+        /**
+         * End of the group, exclusive
+         */
+        private final int end;
+
+        /**
+         * Initializes the task
+         *
+         * @param matches postings of the matched words in query order
+         * @param bounds  of the location ranges, null for the open ends
+         * @param start   first range of the group
+         * @param end     end of the group, exclusive
+         */
+        public PartialSearchTask(List<TreeMap<String, TreeSet<Integer>>> matches, List<String> bounds, int start,
+                int end) {
+            this.matches = matches;
+            this.bounds = bounds;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected List<SingleSearchResult> compute() {
+            if (end - start == 1) {
+                return score(matches, bounds.get(start), bounds.get(end));
+            }
+
+            int middle = (start + end) >>> 1;
+            PartialSearchTask first = new PartialSearchTask(matches, bounds, start, middle);
+            first.fork();
+            List<SingleSearchResult> second = new PartialSearchTask(matches, bounds, middle, end).compute();
+            List<SingleSearchResult> searchResults = first.join();
+            searchResults.addAll(second);
+            return searchResults;
+        }
+    }
+
     /**
      * Search Helper method
      *
-     * @param iterator      used to iterate over map
+     * @param locations     postings of the matched word
      * @param queryMap      used to put search results
      * @param searchResults list to sort
-     * @param word          to update
      */
-    private void searchHelper(Iterator<Entry<String, TreeSet<Integer>>> iterator,
-            HashMap<String, SingleSearchResult> queryMap, List<SingleSearchResult> searchResults, String word) {
+    private void searchHelper(TreeMap<String, TreeSet<Integer>> locations,
+            HashMap<String, SingleSearchResult> queryMap, List<SingleSearchResult> searchResults) {
+        double weight = weight(locations);
+        var iterator = locations.entrySet().iterator();
         while (iterator.hasNext()) {
             var name = iterator.next();
             String location = name.getKey();
@@ -291,7 +809,104 @@ public class InvertedIndex {
                 queryMap.put(location, new SingleSearchResult(location));
                 searchResults.add(queryMap.get(location));
             }
-            queryMap.get(location).update(word);
+            queryMap.get(location).update(weight, name.getValue().size());
+        }
+    }
+
+    /**
+     * Searches many queries at once. Every distinct word (and every distinct
+     * prefix for partial search) is looked up once for the whole batch, and the
+     * postings of each matched word are walked once, updating the results of
+     * every query that uses the word.
+     *
+     * @param queries map from query key to the set of parsed words of the query
+     * @param exact   boolean to perform exact or partial search
+     * @return map from query key to its sorted list of search results
+     */
+    public Map<String, List<SingleSearchResult>> batchSearch(Map<String, Set<String>> queries, boolean exact) {
+        Map<String, List<BatchQuery>> users = new HashMap<>();
+        Map<String, BatchQuery> batch = new HashMap<>();
+
+        for (var query : queries.entrySet()) {
+            BatchQuery state = new BatchQuery();
+            batch.put(query.getKey(), state);
+            for (String word : query.getValue()) {
+                users.computeIfAbsent(word, key -> new ArrayList<>()).add(state);
+            }
+        }
+
+        TreeMap<String, List<BatchQuery>> matches = new TreeMap<>();
+        for (var user : users.entrySet()) {
+            if (exact) {
+                if (wordMap.containsKey(user.getKey())) {
+                    matches.computeIfAbsent(user.getKey(), key -> new ArrayList<>()).addAll(user.getValue());
+                }
+            } else {
+                for (String word : wordMap.tailMap(user.getKey()).keySet()) {
+                    if (!word.startsWith(user.getKey())) {
+                        break;
+                    }
+                    matches.computeIfAbsent(word, key -> new ArrayList<>()).addAll(user.getValue());
+                }
+            }
+        }
+
+        for (var match : matches.entrySet()) {
+            TreeMap<String, TreeSet<Integer>> locations = wordMap.get(match.getKey());
+            double weight = weight(locations);
+            for (var posting : locations.entrySet()) {
+                int frequency = posting.getValue().size();
+                for (BatchQuery state : match.getValue()) {
+                    state.update(posting.getKey(), weight, frequency);
+                }
+            }
+        }
+
+        Map<String, List<SingleSearchResult>> results = new HashMap<>();
+        for (var query : batch.entrySet()) {
+            Collections.sort(query.getValue().searchResults);
+            results.put(query.getKey(), query.getValue().searchResults);
+        }
+        return results;
+    }
+
+    /**
+     * Results of one query in a batch search
+     */
+    private class BatchQuery {
+        /**
+         * Search results by location
+         */
+        private final HashMap<String, SingleSearchResult> queryMap;
+
+        /**
+         * Search results in the order they were found
+         */
+        private final List<SingleSearchResult> searchResults;
+
+        /**
+         * Initializes empty results
+         */
+        public BatchQuery() {
+            this.queryMap = new HashMap<>();
+            this.searchResults = new ArrayList<>();
+        }
+
+        /**
+         * Adds the occurrences of a matched word in a location
+         *
+         * @param location  of the word
+         * @param weight    of the word from the scoring model
+         * @param frequency number of times the word occurs in the location
+         */
+        private void update(String location, double weight, int frequency) {
+            SingleSearchResult result = queryMap.get(location);
+            if (result == null) {
+                result = new SingleSearchResult(location);
+                queryMap.put(location, result);
+                searchResults.add(result);
+            }
+            result.update(weight, frequency);
         }
     }
 
@@ -310,6 +925,767 @@ public class InvertedIndex {
         return partialSearch(parsedWords);
     }
 
+    /**
+     * Search function returning only the best results
+     *
+     * @param parsedWords Set of parsed words
+     * @param exact       boolean to perform exact or partial search
+     * @param limit       maximum number of results, or 0 for every result
+     * @return List of type SingleSearchResult
+     * @see #topSearch(Set, boolean, int)
+     * @see #impactSearch(Set, boolean, int)
+     */
+    public List<SingleSearchResult> search(Set<String> parsedWords, boolean exact, int limit) {
+        if (limit <= 0) {
+            return search(parsedWords, exact);
+        }
+        return impactOrdered ? impactSearch(parsedWords, exact, limit) : topSearch(parsedWords, exact, limit);
+    }
+
+    /**
+     * Top-K search method using WAND dynamic pruning. The postings of the matched
+     * words are walked together in location order, and a location is only scored
+     * if the score bounds of the words positioned on or before it could beat the
+     * worst of the best results found so far; otherwise those words skip ahead.
+     * Returns the same results as the first limit results of
+     * {@link #search(Set, boolean)}.
+     *
+     * @param parsedWords Set of parsed words
+     * @param exact       boolean to perform exact or partial search
+     * @param limit       maximum number of results
+     * @return List of type SingleSearchResult
+     */
+    public List<SingleSearchResult> topSearch(Set<String> parsedWords, boolean exact, int limit) {
+        List<Cursor> terms = new ArrayList<>();
+        for (String word : parsedWords) {
+            if (exact) {
+                TreeMap<String, TreeSet<Integer>> locations = wordMap.get(word);
+                if (locations != null) {
+                    double weight = weight(locations);
+                    terms.add(new Cursor(locations, weight, bound(word, locations, weight)));
+                }
+            } else {
+                for (var entry : wordMap.tailMap(word).entrySet()) {
+                    if (!entry.getKey().startsWith(word)) {
+                        break;
+                    }
+                    double weight = weight(entry.getValue());
+                    terms.add(new Cursor(entry.getValue(), weight, bound(entry.getKey(), entry.getValue(), weight)));
+                }
+            }
+        }
+
+        PriorityQueue<SingleSearchResult> heap = new PriorityQueue<>(Collections.reverseOrder());
+        List<Cursor> cursors = new ArrayList<>(terms);
+        while (!cursors.isEmpty()) {
+            cursors.sort((one, two) -> one.location.compareTo(two.location));
+            double threshold = heap.size() < limit ? Double.NEGATIVE_INFINITY : heap.peek().score;
+
+            int pivot = -1;
+            double upper = 0;
+            for (int i = 0; i < cursors.size(); i++) {
+                upper += cursors.get(i).bound;
+                if (upper * (1 + BOUND_SLACK) >= threshold) {
+                    pivot = i;
+                    break;
+                }
+            }
+            if (pivot < 0) {
+                break;
+            }
+
+            String location = cursors.get(pivot).location;
+            if (cursors.get(0).location.equals(location)) {
+                SingleSearchResult result = new SingleSearchResult(location);
+                for (Cursor term : terms) {
+                    if (term.location != null && term.location.equals(location)) {
+                        result.update(term.weight, term.frequency());
+                    }
+                }
+                if (heap.size() < limit) {
+                    heap.add(result);
+                } else if (result.compareTo(heap.peek()) < 0) {
+                    heap.poll();
+                    heap.add(result);
+                }
+                for (Cursor cursor : cursors) {
+                    if (cursor.location.equals(location)) {
+                        cursor.next();
+                    }
+                }
+            } else {
+                for (int i = 0; i < pivot; i++) {
+                    cursors.get(i).seek(location);
+                }
+            }
+            cursors.removeIf(cursor -> cursor.location == null);
+        }
+
+        List<SingleSearchResult> searchResults = new ArrayList<>(heap);
+        Collections.sort(searchResults);
+        return searchResults;
+    }
+
+    /**
+     * Top-K search method over impact-ordered postings, using the threshold
+     * algorithm. The postings of the matched words are read in parallel from the
+     * largest score contribution down, and every newly seen location is scored in
+     * full. The search stops once the contributions still unread could not beat
+     * the worst of the best results found so far, so the long tail of low-impact
+     * postings is never read. Returns the same results as the first limit results
+     * of {@link #search(Set, boolean)}.
+     *
+     * @param parsedWords Set of parsed words
+     * @param exact       boolean to perform exact or partial search
+     * @param limit       maximum number of results
+     * @return List of type SingleSearchResult
+     */
+    public List<SingleSearchResult> impactSearch(Set<String> parsedWords, boolean exact, int limit) {
+        List<TreeMap<String, TreeSet<Integer>>> postings = new ArrayList<>();
+        List<Double> weights = new ArrayList<>();
+        List<Impacts> ordered = new ArrayList<>();
+        for (String word : parsedWords) {
+            if (exact) {
+                TreeMap<String, TreeSet<Integer>> locations = wordMap.get(word);
+                if (locations != null) {
+                    double weight = weight(locations);
+                    postings.add(locations);
+                    weights.add(weight);
+                    ordered.add(impacts(word, locations, weight));
+                }
+            } else {
+                for (var entry : wordMap.tailMap(word).entrySet()) {
+                    if (!entry.getKey().startsWith(word)) {
+                        break;
+                    }
+                    double weight = weight(entry.getValue());
+                    postings.add(entry.getValue());
+                    weights.add(weight);
+                    ordered.add(impacts(entry.getKey(), entry.getValue(), weight));
+                }
+            }
+        }
+
+        PriorityQueue<SingleSearchResult> heap = new PriorityQueue<>(Collections.reverseOrder());
+        Set<String> seen = new HashSet<>();
+        boolean remaining = true;
+        for (int depth = 0; remaining; depth++) {
+            double threshold = 0;
+            remaining = false;
+            for (Impacts term : ordered) {
+                if (depth >= term.locations.length) {
+                    continue;
+                }
+                remaining = true;
+                threshold += term.impacts[depth];
+
+                String location = term.locations[depth];
+                if (seen.add(location)) {
+                    SingleSearchResult result = new SingleSearchResult(location);
+                    for (int i = 0; i < postings.size(); i++) {
+                        TreeSet<Integer> positions = postings.get(i).get(location);
+                        if (positions != null) {
+                            result.update(weights.get(i), positions.size());
+                        }
+                    }
+                    if (heap.size() < limit) {
+                        heap.add(result);
+                    } else if (result.compareTo(heap.peek()) < 0) {
+                        heap.poll();
+                        heap.add(result);
+                    }
+                }
+            }
+
+            if (heap.size() == limit && threshold * (1 + BOUND_SLACK) < heap.peek().score) {
+                break;
+            }
+        }
+
+        List<SingleSearchResult> searchResults = new ArrayList<>(heap);
+        Collections.sort(searchResults);
+        return searchResults;
+    }
+
+    /**
+     * Postings of one word ordered by descending score contribution
+     */
+    private static class Impacts {
+        /**
+         * Locations in descending contribution order
+         */
+        private final String[] locations;
+
+        /**
+         * Contribution of the word to the score of each location
+         */
+        private final double[] impacts;
+
+        /**
+         * Initializes the ordered postings
+         *
+         * @param entries locations and their contributions in descending order
+         */
+        public Impacts(List<Entry<String, Double>> entries) {
+            this.locations = new String[entries.size()];
+            this.impacts = new double[entries.size()];
+            for (int i = 0; i < entries.size(); i++) {
+                locations[i] = entries.get(i).getKey();
+                impacts[i] = entries.get(i).getValue();
+            }
+        }
+    }
+
+    /**
+     * Position of top-K search in the postings of one matched word
+     */
+    private static class Cursor {
+        /**
+         * Postings of the word
+         */
+        private final TreeMap<String, TreeSet<Integer>> locations;
+
+        /**
+         * Weight of the word from the scoring model
+         */
+        private final double weight;
+
+        /**
+         * Largest score the word adds to any location
+         */
+        private final double bound;
+
+        /**
+         * Remaining postings
+         */
+        private Iterator<Entry<String, TreeSet<Integer>>> iterator;
+
+        /**
+         * Current posting
+         */
+        private Entry<String, TreeSet<Integer>> current;
+
+        /**
+         * Current location, or null once the postings are exhausted
+         */
+        private String location;
+
+        /**
+         * Positions the cursor on the first posting
+         *
+         * @param locations postings of the word
+         * @param weight    of the word from the scoring model
+         * @param bound     largest score the word adds to any location
+         */
+        public Cursor(TreeMap<String, TreeSet<Integer>> locations, double weight, double bound) {
+            this.locations = locations;
+            this.weight = weight;
+            this.bound = bound;
+            this.iterator = locations.entrySet().iterator();
+            next();
+        }
+
+        /**
+         * Returns the number of times the word occurs in the current location
+         *
+         * @return frequency
+         */
+        public int frequency() {
+            return current.getValue().size();
+        }
+
+        /**
+         * Moves to the next posting
+         */
+        public void next() {
+            current = iterator.hasNext() ? iterator.next() : null;
+            location = current == null ? null : current.getKey();
+        }
+
+        /**
+         * Skips to the first posting at or after the target location
+         *
+         * @param target location
+         */
+        public void seek(String target) {
+            if (location != null && location.compareTo(target) < 0) {
+                iterator = locations.tailMap(target, true).entrySet().iterator();
+                next();
+            }
+        }
+    }
+
+    /**
+     * Search function for phrase, proximity and boolean queries
+     *
+     * @param query phrase, proximity or boolean query
+     * @param exact boolean to perform exact or partial search
+     * @return List of type SingleSearchResult
+     * @see #phraseSearch(PhraseQuery)
+     * @see #booleanSearch(BooleanQuery, boolean)
+     */
+    public List<SingleSearchResult> search(SearchQuery query, boolean exact) {
+        return query.search(this, exact);
+    }
+
+    /**
+     * Phrase search method that finds the locations where the stems of the query
+     * appear in order at consecutive positions, or within the query distance of
+     * each other for proximity queries. The query count of a location is its
+     * number of matches.
+     *
+     * <p>
+     * Candidate locations come from the stem found in the fewest locations. In
+     * each location the stem with the fewest positions anchors every match, and
+     * the other stems are only probed at the positions the anchor allows, so the
+     * cost follows the rarest stem rather than the most common one. The anchor
+     * only drives matching: every location is scored with the same weight, the
+     * sum of the weights of the stems of the query.
+     *
+     * @param query phrase or proximity query
+     * @return List of type SingleSearchResult
+     */
+    public List<SingleSearchResult> phraseSearch(PhraseQuery query) {
+        List<String> stems = query.getStems();
+        List<SingleSearchResult> searchResults = new ArrayList<>();
+        List<TreeMap<String, TreeSet<Integer>>> postings = new ArrayList<>(stems.size());
+        int rarest = 0;
+        double weight = 0;
+
+        for (int i = 0; i < stems.size(); i++) {
+            TreeMap<String, TreeSet<Integer>> locations = wordMap.get(stems.get(i));
+            if (locations == null) {
+                return searchResults;
+            }
+            postings.add(locations);
+            weight += weight(locations);
+            if (locations.size() < postings.get(rarest).size()) {
+                rarest = i;
+            }
+        }
+
+        List<TreeSet<Integer>> positions = new ArrayList<>(stems.size());
+        for (var entry : postings.get(rarest).entrySet()) {
+            String location = entry.getKey();
+            int anchor = -1;
+            positions.clear();
+
+            for (int i = 0; i < stems.size(); i++) {
+                TreeSet<Integer> found = i == rarest ? entry.getValue() : postings.get(i).get(location);
+                if (found == null) {
+                    break;
+                }
+                positions.add(found);
+                if (anchor < 0 || found.size() < positions.get(anchor).size()) {
+                    anchor = i;
+                }
+            }
+
+            if (positions.size() < stems.size()) {
+                continue;
+            }
+
+            int matches = query.isPhrase() ? phraseMatches(positions, anchor)
+                    : proximityMatches(positions, anchor, query.getDistance());
+            if (matches > 0) {
+                SingleSearchResult result = new SingleSearchResult(location);
+                result.update(weight, matches);
+                searchResults.add(result);
+            }
+        }
+
+        Collections.sort(searchResults);
+        return searchResults;
+    }
+
+    /**
+     * Counts the positions where every stem of a phrase appears in order
+     *
+     * @param positions of each stem of the phrase in one location
+     * @param anchor    index of the stem with the fewest positions
+     * @return number of phrase matches
+     */
+    private static int phraseMatches(List<TreeSet<Integer>> positions, int anchor) {
+        int matches = 0;
+        for (int position : positions.get(anchor)) {
+            int start = position - anchor;
+            boolean found = true;
+            for (int i = 0; i < positions.size() && found; i++) {
+                found = i == anchor || positions.get(i).contains(start + i);
+            }
+            if (found) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Counts the positions of the anchor stem that have every other stem within
+     * distance words. A stem repeated in the query must appear within distance at
+     * as many distinct positions as it is repeated, not counting the anchor
+     * position itself.
+     *
+     * @param positions of each stem of the query in one location
+     * @param anchor    index of the stem with the fewest positions
+     * @param distance  maximum distance in words
+     * @return number of proximity matches
+     */
+    private static int proximityMatches(List<TreeSet<Integer>> positions, int anchor, int distance) {
+        TreeSet<Integer> anchors = positions.get(anchor);
+        // repeated stems share the same positions, so they are counted by identity
+        Map<TreeSet<Integer>, Integer> needed = new IdentityHashMap<>();
+        for (TreeSet<Integer> other : positions) {
+            needed.merge(other, 1, Integer::sum);
+        }
+        needed.merge(anchors, -1, Integer::sum);
+
+        int matches = 0;
+        for (int position : anchors) {
+            boolean found = true;
+            for (var entry : needed.entrySet()) {
+                if (!found) {
+                    break;
+                }
+                found = countNear(entry.getKey(), position, distance, entry.getKey() == anchors,
+                        entry.getValue()) >= entry.getValue();
+            }
+            if (found) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Counts the positions within distance words of a position, stopping once
+     * enough are found
+     *
+     * @param other    positions of a stem
+     * @param position to count around
+     * @param distance maximum distance in words
+     * @param exclude  whether the position itself is not counted
+     * @param limit    number of positions after which counting stops
+     * @return number of positions found, at most the limit
+     */
+    private static int countNear(TreeSet<Integer> other, int position, int distance, boolean exclude, int limit) {
+        // saturates so a distance near Integer.MAX_VALUE cannot overflow the bounds
+        int from = (int) Math.max(Integer.MIN_VALUE, (long) position - distance);
+        int to = (int) Math.min(Integer.MAX_VALUE, (long) position + distance);
+        int count = 0;
+        for (int near : other.subSet(from, true, to, true)) {
+            if (count >= limit) {
+                break;
+            }
+            if (!exclude || near != position) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Boolean search method that finds the locations matching the query tree. A
+     * location is scored like a plain search over the words of the query that are
+     * not negated and that match within the location.
+     *
+     * <p>
+     * Conjunctions take their candidate locations from the clause matching the
+     * fewest locations and probe the other clauses from the most to the least
+     * selective, stopping at the first clause that fails, so an AND of common
+     * words costs about as much as its rarest word.
+     *
+     * @param query boolean query
+     * @param exact boolean to perform exact or partial search
+     * @return List of type SingleSearchResult
+     */
+    public List<SingleSearchResult> booleanSearch(BooleanQuery query, boolean exact) {
+        Clause root = compile(query, exact);
+        List<SingleSearchResult> searchResults = new ArrayList<>();
+
+        for (String location : root.candidates()) {
+            if (root.matches(location)) {
+                SingleSearchResult result = new SingleSearchResult(location);
+                root.collect(location, result);
+                searchResults.add(result);
+            }
+        }
+
+        Collections.sort(searchResults);
+        return searchResults;
+    }
+
+    /**
+     * Binds a boolean query tree to the postings of this index
+     *
+     * @param query boolean query
+     * @param exact boolean to match whole stems or prefixes
+     * @return clause evaluating the query
+     */
+    private Clause compile(BooleanQuery query, boolean exact) {
+        switch (query.getOperator()) {
+            case TERM:
+                TermClause term = new TermClause();
+                if (exact) {
+                    TreeMap<String, TreeSet<Integer>> locations = wordMap.get(query.getStem());
+                    if (locations != null) {
+                        term.add(locations, weight(locations));
+                    }
+                } else {
+                    for (var entry : wordMap.tailMap(query.getStem()).entrySet()) {
+                        if (!entry.getKey().startsWith(query.getStem())) {
+                            break;
+                        }
+                        term.add(entry.getValue(), weight(entry.getValue()));
+                    }
+                }
+                return term;
+            case OR:
+                List<Clause> any = new ArrayList<>();
+                for (BooleanQuery child : query.getChildren()) {
+                    any.add(compile(child, exact));
+                }
+                return new OrClause(any);
+            case AND:
+                List<Clause> required = new ArrayList<>();
+                List<Clause> excluded = new ArrayList<>();
+                for (BooleanQuery child : query.getChildren()) {
+                    if (child.getOperator() == BooleanQuery.Operator.NOT) {
+                        excluded.add(compile(child.getChildren().get(0), exact));
+                    } else {
+                        required.add(compile(child, exact));
+                    }
+                }
+                return new AndClause(required, excluded);
+            default:
+                return new AndClause(List.of(), List.of(compile(query.getChildren().get(0), exact)));
+        }
+    }
+
+    /**
+     * Boolean query clause bound to the postings of this index
+     */
+    private interface Clause {
+        /**
+         * Returns an upper bound on the number of locations the clause matches
+         *
+         * @return estimated number of locations
+         */
+        public int estimate();
+
+        /**
+         * Returns every location the clause may match, each once
+         *
+         * @return candidate locations
+         */
+        public Collection<String> candidates();
+
+        /**
+         * Checks if the clause matches the location
+         *
+         * @param location to check
+         * @return true if the location matches
+         */
+        public boolean matches(String location);
+
+        /**
+         * Adds the occurrences of the words of the clause in a matching location
+         *
+         * @param location matching the clause
+         * @param result   to update
+         */
+        public void collect(String location, SingleSearchResult result);
+    }
+
+    /**
+     * Clause matching the locations of one stem, or of every stem with the prefix
+     * in partial search
+     */
+    private static class TermClause implements Clause {
+        /**
+         * Postings of the matched stems
+         */
+        private final List<TreeMap<String, TreeSet<Integer>>> postings = new ArrayList<>();
+
+        /**
+         * Weights of the matched stems from the scoring model
+         */
+        private final List<Double> weights = new ArrayList<>();
+
+        /**
+         * Number of locations over all postings
+         */
+        private int size = 0;
+
+        /**
+         * Adds a matched stem
+         *
+         * @param locations postings of the stem
+         * @param weight    of the stem from the scoring model
+         */
+        public void add(TreeMap<String, TreeSet<Integer>> locations, double weight) {
+            postings.add(locations);
+            weights.add(weight);
+            size += locations.size();
+        }
+
+        @Override
+        public int estimate() {
+            return size;
+        }
+
+        @Override
+        public Collection<String> candidates() {
+            if (postings.size() == 1) {
+                return postings.get(0).keySet();
+            }
+            Set<String> locations = new HashSet<>();
+            for (var locationMap : postings) {
+                locations.addAll(locationMap.keySet());
+            }
+            return locations;
+        }
+
+        @Override
+        public boolean matches(String location) {
+            for (var locationMap : postings) {
+                if (locationMap.containsKey(location)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void collect(String location, SingleSearchResult result) {
+            for (int i = 0; i < postings.size(); i++) {
+                TreeSet<Integer> positions = postings.get(i).get(location);
+                if (positions != null) {
+                    result.update(weights.get(i), positions.size());
+                }
+            }
+        }
+    }
+
+    /**
+     * Clause matching the locations that match any of its clauses
+     */
+    private static class OrClause implements Clause {
+        /**
+         * Clauses to match
+         */
+        private final List<Clause> clauses;
+
+        /**
+         * Initializes the clause
+         *
+         * @param clauses to match
+         */
+        public OrClause(List<Clause> clauses) {
+            this.clauses = clauses;
+        }
+
+        @Override
+        public int estimate() {
+            int estimate = 0;
+            for (Clause clause : clauses) {
+                estimate += clause.estimate();
+            }
+            return estimate;
+        }
+
+        @Override
+        public Collection<String> candidates() {
+            Set<String> locations = new HashSet<>();
+            for (Clause clause : clauses) {
+                locations.addAll(clause.candidates());
+            }
+            return locations;
+        }
+
+        @Override
+        public boolean matches(String location) {
+            for (Clause clause : clauses) {
+                if (clause.matches(location)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void collect(String location, SingleSearchResult result) {
+            for (Clause clause : clauses) {
+                if (clause.matches(location)) {
+                    clause.collect(location, result);
+                }
+            }
+        }
+    }
+
+    /**
+     * Clause matching the locations that match all of its required clauses and
+     * none of its excluded clauses. With no required clauses it matches nothing.
+     */
+    private static class AndClause implements Clause {
+        /**
+         * Required clauses, most selective first
+         */
+        private final List<Clause> required;
+
+        /**
+         * Excluded clauses
+         */
+        private final List<Clause> excluded;
+
+        /**
+         * Initializes the clause
+         *
+         * @param required clauses every location must match
+         * @param excluded clauses no location may match
+         */
+        public AndClause(List<Clause> required, List<Clause> excluded) {
+            this.required = new ArrayList<>(required);
+            this.required.sort((one, two) -> Integer.compare(one.estimate(), two.estimate()));
+            this.excluded = excluded;
+        }
+
+        @Override
+        public int estimate() {
+            return required.isEmpty() ? 0 : required.get(0).estimate();
+        }
+
+        @Override
+        public Collection<String> candidates() {
+            return required.isEmpty() ? List.of() : required.get(0).candidates();
+        }
+
+        @Override
+        public boolean matches(String location) {
+            if (required.isEmpty()) {
+                return false;
+            }
+            for (Clause clause : required) {
+                if (!clause.matches(location)) {
+                    return false;
+                }
+            }
+            for (Clause clause : excluded) {
+                if (clause.matches(location)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void collect(String location, SingleSearchResult result) {
+            for (Clause clause : required) {
+                clause.collect(location, result);
+            }
+        }
+    }
+
     /**
      * Getter method to get outer map key set
      *
@@ -24,13 +24,40 @@ public class InvertedIndexBuilder {
      */
     protected final InvertedIndex index;
 
+    /**
+     * Whether files already in the index are skipped, to resume a build whose
+     * index was recovered after a crash
+     */
+    private final boolean resume;
+
+    /**
+     * Manifest of the files in a persisted index to build incrementally, or null
+     * to index every file
+     */
+    protected final IndexManifest manifest;
+
     /**
      * Constructor that passes in an inverted index
      *
      * @param index to build
      */
     public InvertedIndexBuilder(InvertedIndex index) {
+        this(index, false, null);
+    }
+
+    /**
+     * Constructor that passes in an inverted index, whether to resume a build and
+     * the manifest to build incrementally
+     *
+     * @param index    to build
+     * @param resume   whether files already in the index are skipped
+     * @param manifest of the files already in the index, or null to index every
+     *                 file
+     */
+    public InvertedIndexBuilder(InvertedIndex index, boolean resume, IndexManifest manifest) {
         this.index = index;
+        this.resume = resume;
+        this.manifest = manifest;
     }
 
     /**
@@ -43,9 +70,13 @@ public class InvertedIndexBuilder {
     public void build(Path path) throws IOException {
         if (Files.isDirectory(path)) {
             traverseDirectory(path);
-        } else {
+        } else if (!skip(path)) {
             indexWriter(path);
         }
+
+        if (manifest != null) {
+            manifest.removeDeleted(path, index);
+        }
     }
 
     /**
@@ -55,7 +86,15 @@ public class InvertedIndexBuilder {
      * @throws IOException if an IO error occurs
      */
     public void indexWriter(Path file) throws IOException {
+        if (manifest == null) {
+            indexWriter(file, index);
+            return;
+        }
+
+        IndexManifest.Entry entry = IndexManifest.describe(file);
+        index.remove(file.toString());
         indexWriter(file, index);
+        manifest.put(file.toString(), entry);
     }
 
     /**
@@ -93,6 +132,23 @@ public class InvertedIndexBuilder {
         return lower.endsWith(".txt") || lower.endsWith(".text");
     }
 
+    /**
+     * Returns whether a file is skipped because the build is incremental and the
+     * file did not change, or because the build resumes and the file is already
+     * indexed. Each file is merged into the index in one write, so a recovered
+     * index holds either all or none of a file.
+     *
+     * @param file to check
+     * @return true if the file is not indexed again
+     * @throws IOException if an IO error occurs
+     */
+    protected boolean skip(Path file) throws IOException {
+        if (manifest != null) {
+            return manifest.isUnchanged(file);
+        }
+        return resume && index.containsLocation(file.toString());
+    }
+
     /**
      * Recursive function to traverse through directories until it is a text file
      *
@@ -104,7 +160,7 @@ public class InvertedIndexBuilder {
             for (Path path : listing) {
                 if (Files.isDirectory(path)) {
                     traverseDirectory(path);
-                } else if (isTextFile(path)) {
+                } else if (isTextFile(path) && !skip(path)) {
                     indexWriter(path);
                 }
             }
@@ -15,6 +15,13 @@ import java.util.regex.Pattern;
  * @version Spring 2022
  */
 public class LinkParser {
+    /** Regular expression that matches the href attribute of anchor tags. **/
+    public static final Pattern HREF_REGEX = Pattern
+            .compile("(?i)<a\\s*(?:[^>]*?\\s+)?href[\\s\\S]?=[\\s\\S]*?\\\"([^\\\"]+)\\\"[\\s\\S]*?>");
+
+    /** Regular expression that matches the scheme at the start of a link. **/
+    private static final Pattern SCHEME_REGEX = Pattern.compile("^[A-Za-z][A-Za-z0-9+.-]*:");
+
     /**
      * Returns a list of all the valid HTTP(S) links found in the href attribute of
      * the anchor tags in the provided HTML. The links will be converted to absolute
@@ -29,7 +36,7 @@ public class LinkParser {
      * @param html the raw html associated with the base url
      * @return list of all valid http(s) links in the order they were found
      *
-     * @see Pattern#compile(String)
+     * @see #HREF_REGEX
      * @see Matcher#find()
      * @see Matcher#group(int)
      * @see #normalize(URL)
@@ -37,9 +44,7 @@ public class LinkParser {
      */
     public static ArrayList<URL> getValidLinks(URL base, String html) {
         ArrayList<URL> links = new ArrayList<URL>();
-        String regex = "(?i)<a\\s*(?:[^>]*?\\s+)?href[\\s\\S]?=[\\s\\S]*?\\\"([^\\\"]+)\\\"[\\s\\S]*?>";
-        Pattern pattern = Pattern.compile(regex);
-        Matcher matcher = pattern.matcher(html);
+        Matcher matcher = HREF_REGEX.matcher(html);
 
         while (matcher.find()) {
             try {
@@ -61,6 +66,173 @@ public class LinkParser {
         return links;
     }
 
+    /**
+     * Returns the valid HTTP(S) links found in the html like
+     * {@link #getValidLinks(URL, String)}, but as normalized strings. Links that
+     * only use plain URI characters and no dot segments, found on a base whose
+     * path is plain as well, are resolved against the base with string
+     * operations, producing the same string that {@link #normalize(URL)} would,
+     * without creating any {@link URL} or {@link URI} objects. Other links fall
+     * back to {@link #getValidLinks(URL, String)} parsing.
+     *
+     * @param base the base url used to convert relative links to absolute
+     * @param html the raw html associated with the base url
+     * @return list of all valid http(s) links in the order they were found
+     *
+     * @see #resolve(String, String, String, String)
+     */
+    public static ArrayList<String> getLinkStrings(URL base, String html) {
+        ArrayList<String> links = new ArrayList<>();
+        String protocol = base.getProtocol();
+        String root = protocol + "://" + (base.getAuthority() == null ? "" : base.getAuthority());
+        String path = base.getPath().isEmpty() ? "/" : base.getPath();
+        // a base with escapes or other characters URI quotes is left to full parsing
+        boolean plain = isPlain(root) && isPlain(path);
+        Matcher matcher = HREF_REGEX.matcher(html);
+
+        while (matcher.find()) {
+            String href = matcher.group(1);
+            String link = plain ? resolve(protocol, root, path, href) : null;
+            if (link == null) {
+                try {
+                    URL url = normalize(new URL(base, href));
+                    if (isHttp(url)) {
+                        links.add(url.toString());
+                    }
+                } catch (MalformedURLException | URISyntaxException e) {
+                    e.getCause();
+                }
+            } else if (!link.isEmpty()) {
+                links.add(link);
+            }
+        }
+
+        return links;
+    }
+
+    /**
+     * Resolves a link against the base url with string operations and removes its
+     * fragment. Only handles links made of plain URI characters without dot
+     * segments, for which the result matches {@link #normalize(URL)}.
+     *
+     * @param protocol the protocol of the base url
+     * @param root     the protocol and authority of the base url
+     * @param path     the path of the base url, at least "/"
+     * @param href     the link to resolve
+     * @return the normalized absolute link, an empty string if the link is not
+     *         HTTP(S), or {@code null} if the link needs full parsing
+     */
+    public static String resolve(String protocol, String root, String path, String href) {
+        int fragment = href.indexOf('#');
+        if (fragment >= 0) {
+            href = href.substring(0, fragment);
+        }
+        if (href.isEmpty() || !isPlain(href)) {
+            return null;
+        }
+
+        Matcher scheme = SCHEME_REGEX.matcher(href);
+        if (scheme.find()) {
+            String name = scheme.group();
+            if (name.equals("http:") || name.equals("https:")) {
+                return href.startsWith("//", name.length()) && isPlainLink(href) ? href : null;
+            }
+            return name.equalsIgnoreCase("http:") || name.equalsIgnoreCase("https:") ? null : "";
+        }
+
+        String resolved;
+        if (href.startsWith("//")) {
+            resolved = protocol + ":" + href;
+        } else if (href.startsWith("/")) {
+            resolved = root + href;
+        } else {
+            resolved = root + path.substring(0, path.lastIndexOf('/') + 1) + href;
+        }
+        return isPlainLink(resolved) ? resolved : null;
+    }
+
+    /**
+     * Checks that an absolute link resolved with string operations is already in
+     * the form {@link #normalize(URL)} produces
+     *
+     * @param link the absolute link to check
+     * @return true if the link has a plain authority and no dot segments
+     */
+    private static boolean isPlainLink(String link) {
+        return hasPlainAuthority(link) && !hasDotSegment(link);
+    }
+
+    /**
+     * Checks that the authority of an absolute link is a host with an optional
+     * port that {@link URI} keeps as it is. Links without a host, with user
+     * information, or with an empty or zero-padded port are normalized
+     * differently, for example "http://h:/x" becomes "http://h/x" and
+     * "http:///x" becomes "http:/x".
+     *
+     * @param link the absolute link to check
+     * @return true if the authority does not need normalizing
+     */
+    private static boolean hasPlainAuthority(String link) {
+        int start = link.indexOf("//") + 2;
+        int end = start;
+        while (end < link.length() && link.charAt(end) != '/' && link.charAt(end) != '?') {
+            end++;
+        }
+
+        String authority = link.substring(start, end);
+        int colon = authority.indexOf(':');
+        if (authority.isEmpty() || authority.indexOf('@') >= 0 || colon == 0) {
+            return false;
+        }
+        if (colon < 0) {
+            return true;
+        }
+
+        String port = authority.substring(colon + 1);
+        if (port.isEmpty() || port.length() > 5 || port.charAt(0) == '0') {
+            return false;
+        }
+        for (int i = 0; i < port.length(); i++) {
+            if (port.charAt(i) < '0' || port.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks that the link only uses characters that {@link URI} leaves as they
+     * are. Percent signs are excluded since {@link #normalize(URL)} quotes them.
+     *
+     * @param href the link to check
+     * @return true if the link does not need encoding
+     */
+    private static boolean isPlain(String href) {
+        for (int i = 0; i < href.length(); i++) {
+            char c = href.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')) {
+                continue;
+            }
+            if ("-._~/!$&'()*+,;=:?".indexOf(c) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if the path of an absolute link has "." or ".." segments, which
+     * {@link URL} resolves in its own way
+     *
+     * @param link the link to check
+     * @return true if the link has dot segments
+     */
+    private static boolean hasDotSegment(String link) {
+        int query = link.indexOf('?');
+        String path = query < 0 ? link : link.substring(0, query);
+        return path.contains("/./") || path.contains("/../") || path.endsWith("/.") || path.endsWith("/..");
+    }
+
     /**
      * Removes the fragment component of a URL (if present), and properly encodes
      * the query string (if necessary).
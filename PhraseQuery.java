@@ -0,0 +1,128 @@
+package edu.usfca.cs272;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import edu.usfca.cs272.InvertedIndex.SingleSearchResult;
+
+/**
+ * Query for words that appear next to each other or near each other. Phrase
+ * queries are written in quotes, such as {@code "search engine"}, and match the
+ * stems in that exact order at consecutive positions. Proximity queries add the
+ * maximum distance after a tilde, such as {@code "search engine"~5}, and match
+ * wherever every other stem appears within that many words of the rarest stem,
+ * in either order. Phrase words always match whole stems, even in partial
+ * search.
+ *
+ * @author Alessandro Barrera
+ *
+ */
+public class PhraseQuery implements SearchQuery {
+    /**
+     * Regular expression of a phrase or proximity query line
+     */
+    public static final Pattern PHRASE_REGEX = Pattern.compile("^\\s*\"([^\"]*)\"(?:~(\\d+))?\\s*$");
+
+    /**
+     * Stems of the phrase in order, including repeated stems
+     */
+    private final List<String> stems;
+
+    /**
+     * Maximum distance in words for proximity queries, or -1 for phrase queries
+     */
+    private final int distance;
+
+    /**
+     * Initializes a query
+     *
+     * @param stems    of the phrase in order
+     * @param distance maximum distance in words, or -1 for a phrase query
+     */
+    public PhraseQuery(List<String> stems, int distance) {
+        this.stems = List.copyOf(stems);
+        this.distance = distance;
+    }
+
+    /**
+     * Parses a query line written as a phrase or proximity query
+     *
+     * @param line to parse
+     * @return the query, or null if the line is not a phrase or proximity query or
+     *         has no words
+     */
+    public static PhraseQuery parse(String line) {
+        Matcher matcher = PHRASE_REGEX.matcher(line);
+        if (!matcher.matches()) {
+            return null;
+        }
+
+        List<String> stems = TextFileStemmer.listStems(matcher.group(1));
+        if (stems.isEmpty()) {
+            return null;
+        }
+
+        int distance = -1;
+        if (matcher.group(2) != null) {
+            try {
+                distance = Integer.parseInt(matcher.group(2));
+            } catch (NumberFormatException e) {
+                distance = Integer.MAX_VALUE;
+            }
+        }
+        return new PhraseQuery(stems, distance);
+    }
+
+    /**
+     * Returns the stems of the phrase in order
+     *
+     * @return unmodifiable list of stems
+     */
+    public List<String> getStems() {
+        return stems;
+    }
+
+    /**
+     * Returns the maximum distance in words of a proximity query
+     *
+     * @return maximum distance, or -1 for a phrase query
+     */
+    public int getDistance() {
+        return distance;
+    }
+
+    /**
+     * Checks if this is a phrase query rather than a proximity query
+     *
+     * @return true if the stems must appear in order at consecutive positions
+     */
+    public boolean isPhrase() {
+        return distance < 0;
+    }
+
+    /**
+     * Searches the index for this query. Phrase words always match whole stems, so
+     * exact and partial search return the same results.
+     *
+     * @param index to search
+     * @param exact ignored
+     * @return sorted list of search results
+     */
+    @Override
+    public List<SingleSearchResult> search(InvertedIndex index, boolean exact) {
+        return index.phraseSearch(this);
+    }
+
+    /**
+     * Returns the query in its normalized form, used as its key in the results
+     *
+     * @return stemmed query in quotes, followed by the distance for proximity
+     *         queries
+     */
+    @Override
+    public String toString() {
+        String phrase = '"' + String.join(" ", stems) + '"';
+        return isPhrase() ? phrase : phrase + "~" + distance;
+    }
+}
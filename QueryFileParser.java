@@ -1,9 +1,14 @@
 package edu.usfca.cs272;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 
 import edu.usfca.cs272.InvertedIndex.SingleSearchResult;
@@ -16,6 +21,11 @@ import edu.usfca.cs272.InvertedIndex.SingleSearchResult;
  *
  */
 public class QueryFileParser implements QueryFileParserInterface {
+    /**
+     * Maximum number of distinct queries searched together by
+     * {@link InvertedIndex#batchSearch(Map, boolean)}
+     */
+    public static final int BATCH_SIZE = 1000;
 
     /**
      * Inverted Index
@@ -38,6 +48,44 @@ public class QueryFileParser implements QueryFileParserInterface {
         this.index = index;
     }
 
+    /**
+     * Parse file method which parses the entire file, searching the distinct
+     * queries in batches so queries sharing words share their lookups
+     *
+     * @param file  to parse
+     * @param exact keyword to do an exact search or not
+     * @throws IOException if an IO error occurs
+     */
+    @Override
+    public void parseFile(Path file, boolean exact) throws IOException {
+        Map<String, Set<String>> batch = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);) {
+            String line = null;
+            while ((line = reader.readLine()) != null) {
+                SearchQuery query = SearchQuery.parse(line);
+                if (query != null) {
+                    searchQuery(query, exact);
+                    continue;
+                }
+
+                var uniqueSet = TextFileStemmer.uniqueStems(line);
+
+                String stemmedLine = String.join(" ", uniqueSet);
+                if (!stemmedLine.isEmpty() && !storeSearchData.containsKey(stemmedLine)) {
+                    batch.put(stemmedLine, uniqueSet);
+                    if (batch.size() >= BATCH_SIZE) {
+                        storeSearchData.putAll(index.batchSearch(batch, exact));
+                        batch.clear();
+                    }
+                }
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            storeSearchData.putAll(index.batchSearch(batch, exact));
+        }
+    }
+
     /**
      * Parse line method to parse one line
      *
@@ -47,6 +95,12 @@ public class QueryFileParser implements QueryFileParserInterface {
      */
     @Override
     public void parseLine(String line, boolean exact) throws IOException {
+        SearchQuery query = SearchQuery.parse(line);
+        if (query != null) {
+            searchQuery(query, exact);
+            return;
+        }
+
         var uniqueSet = TextFileStemmer.uniqueStems(line);
 
         String stemmedLine = String.join(" ", uniqueSet);
@@ -56,6 +110,20 @@ public class QueryFileParser implements QueryFileParserInterface {
         }
     }
 
+    /**
+     * Searches a phrase, proximity or boolean query unless it was already
+     * searched
+     *
+     * @param query to search
+     * @param exact keyword to do an exact search or not
+     */
+    private void searchQuery(SearchQuery query, boolean exact) {
+        String key = query.toString();
+        if (!storeSearchData.containsKey(key)) {
+            storeSearchData.put(key, index.search(query, exact));
+        }
+    }
+
     /**
      * Write to JSON format
      *
@@ -0,0 +1,530 @@
+package edu.usfca.cs272;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Shard of a {@link ShardedInvertedIndex} held by a {@link ShardServer} in
+ * another process. Searches are sent over {@link ShardProtocol} on pooled
+ * connections, and fail with an {@link UncheckedIOException} if the server
+ * cannot be reached or does not answer within the timeout, so the coordinator
+ * can answer with the results of the other shards. The postings and word
+ * counts stay on the server: this index cannot be written or read, and its
+ * getters throw {@link UnsupportedOperationException}.
+ *
+ * @author Alessandro Barrera
+ *
+ */
+public class RemoteShardIndex extends ThreadSafeInvertedIndex implements AutoCloseable {
+    /** The default timeout in milliseconds to connect and to wait for results. */
+    public static final int DEFAULT_TIMEOUT = 2000;
+
+    /** Logger used for this class. */
+    private static final Logger log = LogManager.getLogger();
+
+    /**
+     * Address of the shard server as {@code host:port}
+     */
+    private final String address;
+
+    /**
+     * Host of the shard server
+     */
+    private final String host;
+
+    /**
+     * Port of the shard server
+     */
+    private final int port;
+
+    /**
+     * Timeout in milliseconds to connect and to wait for results
+     */
+    private final int timeout;
+
+    /**
+     * Open connections not used by a search
+     */
+    private final ConcurrentLinkedQueue<Connection> idle;
+
+    /**
+     * Number of searches that failed
+     */
+    private final AtomicLong failures;
+
+    /**
+     * Initializes a remote shard. No connection is opened until the first search.
+     *
+     * @param host    of the shard server
+     * @param port    of the shard server
+     * @param timeout in milliseconds to connect and to wait for results
+     */
+    public RemoteShardIndex(String host, int port, int timeout) {
+        this.address = host + ":" + port;
+        this.host = host;
+        this.port = port;
+        this.timeout = timeout;
+        this.idle = new ConcurrentLinkedQueue<>();
+        this.failures = new AtomicLong();
+    }
+
+    /**
+     * Initializes a remote shard from its address
+     *
+     * @param address of the shard server as {@code host:port}
+     * @param timeout in milliseconds to connect and to wait for results
+     * @return the remote shard
+     * @throws IllegalArgumentException if the address has no valid port
+     */
+    public static RemoteShardIndex parse(String address, int timeout) {
+        int colon = address.lastIndexOf(':');
+        try {
+            return new RemoteShardIndex(address.substring(0, colon).strip(),
+                    Integer.parseInt(address.substring(colon + 1).strip()), timeout);
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            throw new IllegalArgumentException("Expected host:port but got: " + address, e);
+        }
+    }
+
+    /**
+     * Returns the number of searches that failed
+     *
+     * @return failures
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public List<SingleSearchResult> exactSearch(Set<String> parsedWords) {
+        return call(out -> writeSearch(out, true, parsedWords),
+                in -> ShardProtocol.readResults(in, this));
+    }
+
+    @Override
+    public List<SingleSearchResult> partialSearch(Set<String> parsedWords) {
+        return call(out -> writeSearch(out, false, parsedWords),
+                in -> ShardProtocol.readResults(in, this));
+    }
+
+    @Override
+    public List<SingleSearchResult> topSearch(Set<String> parsedWords, boolean exact, int limit) {
+        return call(out -> {
+            out.writeByte(ShardProtocol.TOP);
+            out.writeBoolean(exact);
+            out.writeInt(limit);
+            ShardProtocol.writeWords(out, parsedWords);
+        }, in -> ShardProtocol.readResults(in, this));
+    }
+
+    @Override
+    public List<SingleSearchResult> impactSearch(Set<String> parsedWords, boolean exact, int limit) {
+        return topSearch(parsedWords, exact, limit);
+    }
+
+    @Override
+    public List<SingleSearchResult> phraseSearch(PhraseQuery query) {
+        return searchQuery(query, false);
+    }
+
+    @Override
+    public List<SingleSearchResult> booleanSearch(BooleanQuery query, boolean exact) {
+        return searchQuery(query, exact);
+    }
+
+    /**
+     * Searches a phrase, proximity or boolean query
+     *
+     * @param query to search
+     * @param exact boolean to perform exact or partial search
+     * @return sorted list of search results
+     */
+    private List<SingleSearchResult> searchQuery(SearchQuery query, boolean exact) {
+        return call(out -> {
+            out.writeByte(ShardProtocol.QUERY);
+            out.writeBoolean(exact);
+            ShardProtocol.writeQuery(out, query);
+        }, in -> ShardProtocol.readResults(in, this));
+    }
+
+    @Override
+    protected Map<String, List<SingleSearchResult>> searchBatch(Map<String, Set<String>> queries, boolean exact) {
+        return call(out -> {
+            out.writeByte(ShardProtocol.BATCH);
+            out.writeBoolean(exact);
+            out.writeInt(queries.size());
+            for (var query : queries.entrySet()) {
+                out.writeUTF(query.getKey());
+                ShardProtocol.writeWords(out, query.getValue());
+            }
+        }, in -> {
+            int size = ShardProtocol.readCount(in, Integer.MAX_VALUE);
+            Map<String, List<SingleSearchResult>> results = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                results.put(in.readUTF(), ShardProtocol.readResults(in, this));
+            }
+            return results;
+        });
+    }
+
+    /**
+     * Writes a search of a set of words
+     *
+     * @param out         stream to write
+     * @param exact       boolean to perform exact or partial search
+     * @param parsedWords Set of parsed words
+     * @throws IOException if an IO error occurs
+     */
+    private static void writeSearch(DataOutputStream out, boolean exact, Set<String> parsedWords)
+            throws IOException {
+        out.writeByte(ShardProtocol.SEARCH);
+        out.writeBoolean(exact);
+        ShardProtocol.writeWords(out, parsedWords);
+    }
+
+    @Override
+    public void add(String word, String location, int position) {
+        throw new UnsupportedOperationException("Remote shards are written by their shard server");
+    }
+
+    @Override
+    public void addAll(List<String> words, String location) {
+        throw new UnsupportedOperationException("Remote shards are written by their shard server");
+    }
+
+    @Override
+    public void addAll(InvertedIndex local) {
+        throw new UnsupportedOperationException("Remote shards are written by their shard server");
+    }
+
+    @Override
+    public boolean remove(String location) {
+        throw new UnsupportedOperationException("Remote shards are written by their shard server");
+    }
+
+    @Override
+    public void replace(String location, InvertedIndex local) {
+        throw new UnsupportedOperationException("Remote shards are written by their shard server");
+    }
+
+    @Override
+    public void replaceAll(Collection<String> locations, InvertedIndex local) {
+        throw new UnsupportedOperationException("Remote shards are written by their shard server");
+    }
+
+    @Override
+    public InvertedIndex copy(Predicate<String> locations) {
+        throw new UnsupportedOperationException("Remote shards only answer searches");
+    }
+
+    @Override
+    public boolean contains(String word) {
+        throw new UnsupportedOperationException("Remote shards only answer searches");
+    }
+
+    @Override
+    public boolean contains(String word, String location) {
+        throw new UnsupportedOperationException("Remote shards only answer searches");
+    }
+
+    @Override
+    public boolean contains(String word, String location, Integer index) {
+        throw new UnsupportedOperationException("Remote shards only answer searches");
+    }
+
+    @Override
+    public boolean containsLocation(String location) {
+        throw new UnsupportedOperationException("Remote shards only answer searches");
+    }
+
+    @Override
+    public Collection<String> get() {
+        throw new UnsupportedOperationException("Remote shards only answer searches");
+    }
+
+    @Override
+    public Collection<String> get(String word) {
+        throw new UnsupportedOperationException("Remote shards only answer searches");
+    }
+
+    @Override
+    public Collection<Integer> get(String word, String location) {
+        throw new UnsupportedOperationException("Remote shards only answer searches");
+    }
+
+    @Override
+    public Map<String, Integer> getFileCount() {
+        throw new UnsupportedOperationException("Remote shards only answer searches");
+    }
+
+    @Override
+    public int size() {
+        throw new UnsupportedOperationException("Remote shards only answer searches");
+    }
+
+    @Override
+    public int size(String word) {
+        throw new UnsupportedOperationException("Remote shards only answer searches");
+    }
+
+    @Override
+    public int size(String word, String location) {
+        throw new UnsupportedOperationException("Remote shards only answer searches");
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        throw new UnsupportedOperationException("Remote shards only answer searches");
+    }
+
+    @Override
+    public void toJSON(Path writer) throws IOException {
+        throw new UnsupportedOperationException("Remote shards only answer searches");
+    }
+
+    /**
+     * Sends a request and reads its results. The wait is reported to the fork-join
+     * pool, so a coordinator scattering to many shards from the common pool gets
+     * extra threads instead of waiting on one shard at a time.
+     *
+     * @param <T>     type of the results
+     * @param request writing the request
+     * @param reader  reading the results
+     * @return results
+     * @throws UncheckedIOException if the request fails or times out
+     */
+    private <T> T call(Request request, Reader<T> reader) {
+        Call<T> call = new Call<>(request, reader);
+        try {
+            ForkJoinPool.managedBlock(call);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            call.error = new InterruptedIOException("Interrupted waiting for " + address);
+        }
+
+        if (call.error != null) {
+            failures.incrementAndGet();
+            throw new UncheckedIOException("Shard " + address + " failed: " + call.error.getMessage(), call.error);
+        }
+        return call.result;
+    }
+
+    /**
+     * Sends a request on an idle connection, or a new one if there is none. A
+     * pooled connection the server has since closed is retried once on a new
+     * connection; timeouts are not retried.
+     *
+     * @param <T>     type of the results
+     * @param request writing the request
+     * @param reader  reading the results
+     * @return results
+     * @throws IOException if the request fails or times out
+     */
+    private <T> T exchange(Request request, Reader<T> reader) throws IOException {
+        while (true) {
+            Connection connection = idle.poll();
+            boolean pooled = connection != null;
+            if (!pooled) {
+                connection = new Connection();
+            }
+
+            T result = null;
+            String message = null;
+            try {
+                request.write(connection.out);
+                connection.out.flush();
+                if (connection.in.readByte() == ShardProtocol.OK) {
+                    result = reader.read(connection.in);
+                } else {
+                    message = connection.in.readUTF();
+                }
+            } catch (IOException e) {
+                connection.close();
+                if (pooled && !(e instanceof SocketTimeoutException)) {
+                    log.debug("Retrying on a new connection to {}: {}", address, e.getMessage());
+                    continue;
+                }
+                throw e;
+            }
+
+            idle.add(connection);
+            if (message != null) {
+                throw new IOException(message);
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public void close() {
+        Connection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("remote shard %s (%d failed searches)", address, getFailures());
+    }
+
+    /**
+     * Writer of a request
+     */
+    private interface Request {
+        /**
+         * Writes the request
+         *
+         * @param out stream to write
+         * @throws IOException if an IO error occurs
+         */
+        public void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Reader of the results of a request
+     *
+     * @param <T> type of the results
+     */
+    private interface Reader<T> {
+        /**
+         * Reads the results
+         *
+         * @param in stream to read
+         * @return results
+         * @throws IOException if an IO error occurs
+         */
+        public T read(DataInputStream in) throws IOException;
+    }
+
+    /**
+     * One request, run as a blocking operation of the fork-join pool
+     *
+     * @param <T> type of the results
+     */
+    private class Call<T> implements ForkJoinPool.ManagedBlocker {
+        /**
+         * Writer of the request
+         */
+        private final Request request;
+
+        /**
+         * Reader of the results
+         */
+        private final Reader<T> reader;
+
+        /**
+         * Results once done
+         */
+        private T result;
+
+        /**
+         * Error once failed
+         */
+        private IOException error;
+
+        /**
+         * Whether the request finished
+         */
+        private boolean done;
+
+        /**
+         * Initializes the call
+         *
+         * @param request writing the request
+         * @param reader  reading the results
+         */
+        public Call(Request request, Reader<T> reader) {
+            this.request = request;
+            this.reader = reader;
+        }
+
+        @Override
+        public boolean block() {
+            try {
+                result = exchange(request, reader);
+            } catch (IOException e) {
+                error = e;
+            }
+            done = true;
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return done;
+        }
+    }
+
+    /**
+     * Open connection to the shard server
+     */
+    private class Connection {
+        /**
+         * Socket of the connection
+         */
+        private final Socket socket;
+
+        /**
+         * Stream reading responses
+         */
+        private final DataInputStream in;
+
+        /**
+         * Stream writing requests
+         */
+        private final DataOutputStream out;
+
+        /**
+         * Connects to the shard server and starts the protocol
+         *
+         * @throws IOException if the server cannot be reached in time
+         */
+        public Connection() throws IOException {
+            this.socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), timeout);
+                socket.setSoTimeout(timeout);
+                socket.setTcpNoDelay(true);
+                this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                out.writeInt(ShardProtocol.MAGIC);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Closes the connection, ignoring errors
+         */
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.debug("Unable to close connection to {}: {}", address, e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package edu.usfca.cs272;
+
+/**
+ * Scores the locations matching a query one matched word at a time. The index
+ * keeps the statistics the models need up to date as words are added and
+ * removed: the number of locations containing each word, the number of words in
+ * each location, and the total number of words. A model computes the weight of
+ * a query word once per search, so updating a score takes only a few arithmetic
+ * operations per posting.
+ *
+ * @author Alessandro Barrera
+ *
+ */
+public interface ScoringModel {
+    /**
+     * Matches divided by the number of words in the location (the default)
+     */
+    public static final ScoringModel COUNT = new Count();
+
+    /**
+     * Term frequency weighted by inverse document frequency
+     */
+    public static final ScoringModel TF_IDF = new TfIdf();
+
+    /**
+     * Okapi BM25 with k1 = 1.2 and b = 0.75
+     */
+    public static final ScoringModel BM25 = new Bm25(1.2, 0.75);
+
+    /**
+     * Returns the weight of a query word, computed once per word and search
+     *
+     * @param documentFrequency number of locations containing the word
+     * @param locations         number of locations in the index
+     * @return weight of the word
+     */
+    public double weight(int documentFrequency, int locations);
+
+    /**
+     * Returns the score of a location after one more query word matched it
+     *
+     * @param score         of the location before this word
+     * @param weight        of the word from {@link #weight(int, int)}
+     * @param queryCount    number of matches in the location including this word
+     * @param frequency     number of times the word occurs in the location
+     * @param length        number of words in the location
+     * @param averageLength average number of words per location
+     * @return new score of the location
+     */
+    public double update(double score, double weight, int queryCount, int frequency, int length,
+            double averageLength);
+
+    /**
+     * Returns the part of a location's score contributed by one matched word. The
+     * score of a location must be the sum of the contributions of its matched
+     * words, which holds for every model here; top-K search relies on it to bound
+     * scores.
+     *
+     * @param weight        of the word from {@link #weight(int, int)}
+     * @param frequency     number of times the word occurs in the location
+     * @param length        number of words in the location
+     * @param averageLength average number of words per location
+     * @return score contributed by the word
+     */
+    public default double contribution(double weight, int frequency, int length, double averageLength) {
+        return update(0, weight, frequency, frequency, length, averageLength);
+    }
+
+    /**
+     * Returns the scoring model with the given name
+     *
+     * @param name {@code count}, {@code tfidf} or {@code bm25}, ignoring case
+     * @return the matching model, or {@link #COUNT} for any other name
+     */
+    public static ScoringModel forName(String name) {
+        if ("tfidf".equalsIgnoreCase(name)) {
+            return TF_IDF;
+        }
+        if ("bm25".equalsIgnoreCase(name)) {
+            return BM25;
+        }
+        return COUNT;
+    }
+
+    /**
+     * Scores a location by its number of matches divided by its number of words
+     */
+    public static class Count implements ScoringModel {
+        @Override
+        public double weight(int documentFrequency, int locations) {
+            return 1;
+        }
+
+        @Override
+        public double update(double score, double weight, int queryCount, int frequency, int length,
+                double averageLength) {
+            return queryCount / (double) length;
+        }
+
+        @Override
+        public String toString() {
+            return "count";
+        }
+    }
+
+    /**
+     * Scores a location by the sum over matched words of the word frequency in the
+     * location, divided by the number of words in the location, times the inverse
+     * document frequency {@code log(1 + N / df)}
+     */
+    public static class TfIdf implements ScoringModel {
+        @Override
+        public double weight(int documentFrequency, int locations) {
+            return Math.log(1 + locations / (double) documentFrequency);
+        }
+
+        @Override
+        public double update(double score, double weight, int queryCount, int frequency, int length,
+                double averageLength) {
+            return score + weight * frequency / length;
+        }
+
+        @Override
+        public String toString() {
+            return "tfidf";
+        }
+    }
+
+    /**
+     * Scores a location with Okapi BM25, which saturates the word frequency and
+     * normalizes it by the location length relative to the average length
+     */
+    public static class Bm25 implements ScoringModel {
+        /**
+         * Term frequency saturation
+         */
+        private final double k1;
+
+        /**
+         * Length normalization, from 0 (none) to 1 (full)
+         */
+        private final double b;
+
+        /**
+         * Initializes the model
+         *
+         * @param k1 term frequency saturation
+         * @param b  length normalization, from 0 (none) to 1 (full)
+         */
+        public Bm25(double k1, double b) {
+            this.k1 = k1;
+            this.b = b;
+        }
+
+        @Override
+        public double weight(int documentFrequency, int locations) {
+            return Math.log(1 + (locations - documentFrequency + 0.5) / (documentFrequency + 0.5));
+        }
+
+        @Override
+        public double update(double score, double weight, int queryCount, int frequency, int length,
+                double averageLength) {
+            double norm = averageLength > 0 ? 1 - b + b * length / averageLength : 1;
+            return score + weight * frequency * (k1 + 1) / (frequency + k1 * norm);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("bm25(k1=%s, b=%s)", k1, b);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package edu.usfca.cs272;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.usfca.cs272.InvertedIndex.SingleSearchResult;
+
+/**
+ * Bounded thread-safe cache of search results keyed on the sorted set of query
+ * stems and the search type. The least recently used entry is evicted once the
+ * cache is full. Every write to the index must call {@link #invalidate()}, and
+ * results are only stored if no write happened since the search started, so the
+ * cache never serves results from an older version of the index.
+ *
+ * @author Alessandro Barrera
+ *
+ */
+public class SearchCache {
+    /**
+     * The default maximum number of cached searches.
+     */
+    public static final int DEFAULT_CAPACITY = 1000;
+
+    /**
+     * Cached results in access order, guarded by this cache
+     */
+    private final LinkedHashMap<String, List<SingleSearchResult>> results;
+
+    /**
+     * Maximum number of cached searches
+     */
+    private final int capacity;
+
+    /**
+     * Number of index writes seen so far, guarded by this cache
+     */
+    private long version;
+
+    /**
+     * Number of searches answered from the cache
+     */
+    private final AtomicLong hits;
+
+    /**
+     * Number of searches not found in the cache
+     */
+    private final AtomicLong misses;
+
+    /**
+     * Number of searches evicted to make room for newer ones
+     */
+    private final AtomicLong evictions;
+
+    /**
+     * Initializes an empty cache
+     *
+     * @param capacity maximum number of cached searches
+     */
+    public SearchCache(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.results = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<SingleSearchResult>> eldest) {
+                if (size() > SearchCache.this.capacity) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.version = 0;
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.evictions = new AtomicLong();
+    }
+
+    /**
+     * Builds the cache key of a search. Queries with the same stems in any order
+     * share a key.
+     *
+     * @param parsedWords stems of the query
+     * @param exact       boolean to perform exact or partial search
+     * @return cache key
+     */
+    public static String key(Set<String> parsedWords, boolean exact) {
+        Set<String> sorted = parsedWords instanceof TreeSet ? parsedWords : new TreeSet<>(parsedWords);
+        return (exact ? "exact " : "partial ") + String.join(" ", sorted);
+    }
+
+    /**
+     * Builds the cache key of a phrase, proximity or boolean search
+     *
+     * @param query phrase, proximity or boolean query
+     * @param exact boolean to perform exact or partial search
+     * @return cache key
+     */
+    public static String key(SearchQuery query, boolean exact) {
+        return (exact ? "exact query " : "partial query ") + query;
+    }
+
+    /**
+     * Returns the cached results of a search
+     *
+     * @param key built by {@link #key(Set, boolean)}
+     * @return unmodifiable list of results or null if not cached
+     */
+    public synchronized List<SingleSearchResult> get(String key) {
+        List<SingleSearchResult> cached = results.get(key);
+        if (cached == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return cached;
+    }
+
+    /**
+     * Returns the current version of the index, to pass to
+     * {@link #put(String, long, List)} once a search finishes
+     *
+     * @return number of index writes seen so far
+     */
+    public synchronized long version() {
+        return version;
+    }
+
+    /**
+     * Caches the results of a search unless the index was written since the
+     * search started
+     *
+     * @param key     built by {@link #key(Set, boolean)}
+     * @param version returned by {@link #version()} before the search started
+     * @param cached  unmodifiable list of results
+     */
+    public synchronized void put(String key, long version, List<SingleSearchResult> cached) {
+        if (this.version == version) {
+            results.put(key, cached);
+        }
+    }
+
+    /**
+     * Drops every cached search after a write to the index
+     */
+    public synchronized void invalidate() {
+        version++;
+        results.clear();
+    }
+
+    /**
+     * Returns the number of cached searches
+     *
+     * @return number of searches
+     */
+    public synchronized int size() {
+        return results.size();
+    }
+
+    /**
+     * Returns the number of searches answered from the cache
+     *
+     * @return hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of searches not found in the cache
+     *
+     * @return misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of searches evicted to make room for newer ones
+     *
+     * @return evictions
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        long total = getHits() + getMisses();
+        return String.format("%d cached searches, %d hits, %d misses (%.1f%% hit rate), %d evictions", size(),
+                getHits(), getMisses(), total == 0 ? 0.0 : 100.0 * getHits() / total, getEvictions());
+    }
+}
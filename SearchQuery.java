@@ -0,0 +1,48 @@
+package edu.usfca.cs272;
+
+import java.util.List;
+
+import edu.usfca.cs272.InvertedIndex.SingleSearchResult;
+
+/**
+ * Query written with an operator syntax rather than as a plain list of words,
+ * such as phrase, proximity and boolean queries. Plain query lines are still
+ * searched as a set of stems.
+ *
+ * @author Alessandro Barrera
+ *
+ */
+public interface SearchQuery {
+    /**
+     * Parses a phrase, proximity or boolean query line
+     *
+     * @param line to parse
+     * @return the query, or null if the line is a plain query
+     * @see PhraseQuery#parse(String)
+     * @see BooleanQuery#parse(String)
+     */
+    public static SearchQuery parse(String line) {
+        SearchQuery query = PhraseQuery.parse(line);
+        if (query == null) {
+            query = BooleanQuery.parse(line);
+        }
+        return query;
+    }
+
+    /**
+     * Searches the index for this query
+     *
+     * @param index to search
+     * @param exact boolean to perform exact or partial search
+     * @return sorted list of search results
+     */
+    public List<SingleSearchResult> search(InvertedIndex index, boolean exact);
+
+    /**
+     * Returns the query in its normalized form, used as its key in the results
+     *
+     * @return normalized query
+     */
+    @Override
+    public String toString();
+}
@@ -9,13 +9,11 @@ import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
-import org.apache.commons.text.StringEscapeUtils;
 import org.apache.commons.text.StringSubstitutor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -36,6 +34,9 @@ public class SearchServlet extends HttpServlet {
     /** Title of the webpage */
     private static final String TITLE = "Ale's Search";
 
+    /** Maximum number of results shown per search */
+    private static final int RESULTS = 10;
+
     /**
      * The logger to use (Jetty is configured via the pom.xml to use Log4j2)
      */
@@ -107,14 +108,14 @@ public class SearchServlet extends HttpServlet {
         if (query == null || query.isBlank()) {
             query = "";
         } else {
-            String[] words = query.split(" ");
-
-            Set<String> set = new HashSet<>();
-            for (String word : words) {
-                word = StringEscapeUtils.escapeHtml4(word);
-                set.add(word);
+            SearchQuery searchQuery = SearchQuery.parse(query);
+            if (searchQuery != null) {
+                result = index.search(searchQuery, false);
+                result = result.subList(0, Math.min(RESULTS, result.size()));
+            } else {
+                Set<String> set = TextFileStemmer.uniqueStems(query);
+                result = index.search(set, false, RESULTS);
             }
-            result = index.partialSearch(set);
             for (SingleSearchResult search : result) {
                 String formatted = String.format(
                         "<p>Location:%s Score: %s Query Count: %s<br><font size=\"-2\">[ posted at %s ]</font></p>",
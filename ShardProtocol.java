@@ -0,0 +1,255 @@
+package edu.usfca.cs272;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import edu.usfca.cs272.BooleanQuery.Operator;
+import edu.usfca.cs272.InvertedIndex.SingleSearchResult;
+
+/**
+ * Binary protocol between a coordinator and its shard servers. A connection
+ * starts with the client sending {@link #MAGIC}, then carries any number of
+ * requests, each answered before the next is sent. A request is an operation
+ * byte followed by its arguments; a response is a status byte followed by the
+ * results, or by an error message if the status is {@link #ERROR}. Strings are
+ * written with {@link DataOutputStream#writeUTF(String)}.
+ *
+ * <ul>
+ * <li>{@link #SEARCH}: exact flag, words; answers results</li>
+ * <li>{@link #TOP}: exact flag, limit, words; answers the best results</li>
+ * <li>{@link #QUERY}: exact flag, phrase or boolean query; answers
+ * results</li>
+ * <li>{@link #BATCH}: exact flag, count, then key and words per query; answers
+ * count, then key and results per query</li>
+ * </ul>
+ *
+ * Words are a count followed by each word, and results are a count followed by
+ * the location, match count and score of each result. Counts above
+ * {@link #MAX_COUNT} and boolean queries deeper than {@link #MAX_DEPTH} are
+ * malformed.
+ *
+ * @author Alessandro Barrera
+ *
+ */
+public class ShardProtocol {
+    /** First four bytes of every connection, "SHD" and the protocol version. */
+    public static final int MAGIC = 0x53484401;
+
+    /** Operation searching a set of words. */
+    public static final byte SEARCH = 1;
+
+    /** Operation searching the best results of a set of words. */
+    public static final byte TOP = 2;
+
+    /** Operation searching a phrase, proximity or boolean query. */
+    public static final byte QUERY = 3;
+
+    /** Operation searching many sets of words at once. */
+    public static final byte BATCH = 4;
+
+    /** Status of a successful response. */
+    public static final byte OK = 0;
+
+    /** Status of a failed request, followed by the error message. */
+    public static final byte ERROR = 1;
+
+    /** Largest count of words, stems, children or queries accepted in a request. */
+    public static final int MAX_COUNT = 1 << 20;
+
+    /** Deepest boolean query tree accepted. */
+    public static final int MAX_DEPTH = 256;
+
+    /** Query kind of a phrase or proximity query. */
+    private static final byte PHRASE_QUERY = 0;
+
+    /** Query kind of a boolean query. */
+    private static final byte BOOLEAN_QUERY = 1;
+
+    /**
+     * Writes a set of words
+     *
+     * @param out   stream to write
+     * @param words to write
+     * @throws IOException if an IO error occurs
+     */
+    public static void writeWords(DataOutputStream out, Set<String> words) throws IOException {
+        out.writeInt(words.size());
+        for (String word : words) {
+            out.writeUTF(word);
+        }
+    }
+
+    /**
+     * Reads a set of words
+     *
+     * @param in stream to read
+     * @return words in the order they were written
+     * @throws IOException if an IO error occurs
+     */
+    public static Set<String> readWords(DataInputStream in) throws IOException {
+        int size = readCount(in, MAX_COUNT);
+        Set<String> words = new LinkedHashSet<>();
+        for (int i = 0; i < size; i++) {
+            words.add(in.readUTF());
+        }
+        return words;
+    }
+
+    /**
+     * Writes a list of search results
+     *
+     * @param out     stream to write
+     * @param results to write
+     * @throws IOException if an IO error occurs
+     */
+    public static void writeResults(DataOutputStream out, List<SingleSearchResult> results) throws IOException {
+        out.writeInt(results.size());
+        for (SingleSearchResult result : results) {
+            out.writeUTF(result.getLocation());
+            out.writeInt(result.getQueryCount());
+            out.writeDouble(result.getScore());
+        }
+    }
+
+    /**
+     * Reads a list of search results
+     *
+     * @param in    stream to read
+     * @param index creating the results
+     * @return results in the order they were written
+     * @throws IOException if an IO error occurs
+     */
+    public static List<SingleSearchResult> readResults(DataInputStream in, InvertedIndex index) throws IOException {
+        int size = readCount(in, Integer.MAX_VALUE);
+        List<SingleSearchResult> results = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            results.add(index.new SingleSearchResult(in.readUTF(), in.readInt(), in.readDouble()));
+        }
+        return results;
+    }
+
+    /**
+     * Writes a phrase, proximity or boolean query in its parsed form, so the
+     * server does not stem the stems again
+     *
+     * @param out   stream to write
+     * @param query to write
+     * @throws IOException if an IO error occurs
+     */
+    public static void writeQuery(DataOutputStream out, SearchQuery query) throws IOException {
+        if (query instanceof PhraseQuery phrase) {
+            out.writeByte(PHRASE_QUERY);
+            out.writeInt(phrase.getDistance());
+            out.writeInt(phrase.getStems().size());
+            for (String stem : phrase.getStems()) {
+                out.writeUTF(stem);
+            }
+        } else if (query instanceof BooleanQuery bool) {
+            out.writeByte(BOOLEAN_QUERY);
+            writeNode(out, bool);
+        } else {
+            throw new IllegalArgumentException("Unsupported query type: " + query.getClass().getName());
+        }
+    }
+
+    /**
+     * Writes a boolean query node and its children
+     *
+     * @param out  stream to write
+     * @param node to write
+     * @throws IOException if an IO error occurs
+     */
+    private static void writeNode(DataOutputStream out, BooleanQuery node) throws IOException {
+        out.writeByte(node.getOperator().ordinal());
+        if (node.getOperator() == Operator.TERM) {
+            out.writeUTF(node.getStem());
+        } else {
+            out.writeInt(node.getChildren().size());
+            for (BooleanQuery child : node.getChildren()) {
+                writeNode(out, child);
+            }
+        }
+    }
+
+    /**
+     * Reads a phrase, proximity or boolean query
+     *
+     * @param in stream to read
+     * @return the query
+     * @throws IOException if an IO error occurs or the query is malformed
+     */
+    public static SearchQuery readQuery(DataInputStream in) throws IOException {
+        byte kind = in.readByte();
+        if (kind == PHRASE_QUERY) {
+            int distance = in.readInt();
+            int size = readCount(in, MAX_COUNT);
+            if (size == 0) {
+                throw new IOException("Phrase query without stems");
+            }
+            List<String> stems = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                stems.add(in.readUTF());
+            }
+            return new PhraseQuery(stems, distance);
+        }
+        if (kind == BOOLEAN_QUERY) {
+            return readNode(in, 1);
+        }
+        throw new IOException("Unknown query kind: " + kind);
+    }
+
+    /**
+     * Reads a boolean query node and its children
+     *
+     * @param in    stream to read
+     * @param depth of the node, 1 for the root
+     * @return the node
+     * @throws IOException if an IO error occurs or the node is malformed
+     */
+    private static BooleanQuery readNode(DataInputStream in, int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new IOException("Boolean query deeper than " + MAX_DEPTH);
+        }
+
+        int ordinal = in.readByte();
+        if (ordinal < 0 || ordinal >= Operator.values().length) {
+            throw new IOException("Unknown boolean operator: " + ordinal);
+        }
+
+        Operator operator = Operator.values()[ordinal];
+        if (operator == Operator.TERM) {
+            return new BooleanQuery(operator, in.readUTF(), List.of());
+        }
+
+        int size = readCount(in, MAX_COUNT);
+        if (size == 0 || (operator == Operator.NOT && size != 1)) {
+            throw new IOException("Boolean " + operator + " with " + size + " children");
+        }
+        List<BooleanQuery> children = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            children.add(readNode(in, depth + 1));
+        }
+        return new BooleanQuery(operator, null, children);
+    }
+
+    /**
+     * Reads a count and checks it before anything is read or allocated for it
+     *
+     * @param in  stream to read
+     * @param max largest count accepted
+     * @return count between 0 and the maximum
+     * @throws IOException if an IO error occurs or the count is out of range
+     */
+    public static int readCount(DataInputStream in, int max) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > max) {
+            throw new IOException("Count out of range: " + count);
+        }
+        return count;
+    }
+}
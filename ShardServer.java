@@ -0,0 +1,290 @@
+package edu.usfca.cs272;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.usfca.cs272.InvertedIndex.SingleSearchResult;
+
+/**
+ * Serves searches of one shard of a distributed index to coordinators over
+ * {@link ShardProtocol}. Each connection is served by its own thread, since a
+ * coordinator keeps its connections open between searches; connections idle
+ * for longer than {@link #IDLE_TIMEOUT} are closed.
+ *
+ * @author Alessandro Barrera
+ *
+ */
+public class ShardServer implements AutoCloseable {
+    /** The default port of a shard server. */
+    public static final int DEFAULT_PORT = 9090;
+
+    /** Milliseconds a connection may stay idle before it is closed. */
+    public static final int IDLE_TIMEOUT = 60_000;
+
+    /** Logger used for this class. */
+    private static final Logger log = LogManager.getLogger();
+
+    /**
+     * Index of this shard, thread-safe if it is still being written
+     */
+    private final InvertedIndex index;
+
+    /**
+     * Socket accepting connections
+     */
+    private final ServerSocket serverSocket;
+
+    /**
+     * Open connections, guarded by itself so no connection is registered after
+     * the server closes
+     */
+    private final Set<Socket> connections;
+
+    /**
+     * Thread accepting connections
+     */
+    private final Thread acceptor;
+
+    /**
+     * Opens the server socket
+     *
+     * @param index to serve
+     * @param port  to listen on, or 0 for any free port
+     * @throws IOException if the port cannot be opened
+     */
+    public ShardServer(InvertedIndex index, int port) throws IOException {
+        this.index = index;
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.setReuseAddress(true);
+        this.serverSocket.bind(new InetSocketAddress(port));
+        this.connections = new HashSet<>();
+        this.acceptor = new Thread(this::accept, "shard-server-" + getPort());
+    }
+
+    /**
+     * Returns the port the server listens on
+     *
+     * @return port
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Starts accepting connections in the background
+     */
+    public void start() {
+        acceptor.start();
+        log.info("Shard server listening on port {}", getPort());
+    }
+
+    /**
+     * Waits until the server is closed
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void join() throws InterruptedException {
+        acceptor.join();
+    }
+
+    /**
+     * Accepts connections until the server socket is closed
+     */
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setSoTimeout(IDLE_TIMEOUT);
+                socket.setTcpNoDelay(true);
+                synchronized (connections) {
+                    if (serverSocket.isClosed()) {
+                        socket.close();
+                        return;
+                    }
+                    connections.add(socket);
+                }
+                Thread worker = new Thread(() -> serve(socket), "shard-connection-" + socket.getPort());
+                worker.setDaemon(true);
+                worker.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    log.warn("Unable to accept a connection: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Answers the requests of one connection until the client closes it
+     *
+     * @param socket connection to serve
+     */
+    private void serve(Socket socket) {
+        try (socket;
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            if (in.readInt() != ShardProtocol.MAGIC) {
+                log.warn("Closing connection from {} with an unknown protocol", socket.getRemoteSocketAddress());
+                return;
+            }
+
+            while (true) {
+                byte operation;
+                try {
+                    operation = in.readByte();
+                } catch (EOFException | SocketTimeoutException e) {
+                    return;
+                }
+                answer(operation, in, out);
+                out.flush();
+            }
+        } catch (SocketException | EOFException e) {
+            log.debug("Connection closed: {}", e.getMessage());
+        } catch (IOException e) {
+            log.warn("Connection failed: {}", e.getMessage());
+        } finally {
+            synchronized (connections) {
+                connections.remove(socket);
+            }
+        }
+    }
+
+    /**
+     * Reads the arguments of one request and writes its response. The whole
+     * request is read before the search runs, so a search that fails is answered
+     * with an {@link ShardProtocol#ERROR} and the connection stays open in sync,
+     * while a malformed request closes the connection.
+     *
+     * @param operation of the request
+     * @param in        stream to read the arguments
+     * @param out       stream to write the response
+     * @throws IOException if an IO error occurs or the request is malformed
+     */
+    private void answer(byte operation, DataInputStream in, DataOutputStream out) throws IOException {
+        Search search;
+        try {
+            search = read(operation, in);
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed request: " + e, e);
+        }
+
+        Response response;
+        try {
+            response = search.run();
+        } catch (RuntimeException e) {
+            log.warn("Search failed: {}", e.toString());
+            out.writeByte(ShardProtocol.ERROR);
+            out.writeUTF(String.valueOf(e.getMessage()));
+            return;
+        }
+        out.writeByte(ShardProtocol.OK);
+        response.write(out);
+    }
+
+    /**
+     * Reads and checks the arguments of one request
+     *
+     * @param operation of the request
+     * @param in        stream to read the arguments
+     * @return search to run
+     * @throws IOException if an IO error occurs or the request is malformed
+     */
+    private Search read(byte operation, DataInputStream in) throws IOException {
+        boolean exact = in.readBoolean();
+        switch (operation) {
+            case ShardProtocol.SEARCH: {
+                Set<String> words = ShardProtocol.readWords(in);
+                return () -> {
+                    List<SingleSearchResult> results = index.search(words, exact);
+                    return out -> ShardProtocol.writeResults(out, results);
+                };
+            }
+            case ShardProtocol.TOP: {
+                int limit = in.readInt();
+                Set<String> words = ShardProtocol.readWords(in);
+                return () -> {
+                    List<SingleSearchResult> results = index.search(words, exact, limit);
+                    return out -> ShardProtocol.writeResults(out, results);
+                };
+            }
+            case ShardProtocol.QUERY: {
+                SearchQuery query = ShardProtocol.readQuery(in);
+                return () -> {
+                    List<SingleSearchResult> results = index.search(query, exact);
+                    return out -> ShardProtocol.writeResults(out, results);
+                };
+            }
+            case ShardProtocol.BATCH: {
+                int size = ShardProtocol.readCount(in, ShardProtocol.MAX_COUNT);
+                Map<String, Set<String>> queries = new HashMap<>();
+                for (int i = 0; i < size; i++) {
+                    queries.put(in.readUTF(), ShardProtocol.readWords(in));
+                }
+                return () -> {
+                    Map<String, List<SingleSearchResult>> results = index.batchSearch(queries, exact);
+                    return out -> {
+                        out.writeInt(results.size());
+                        for (var entry : results.entrySet()) {
+                            out.writeUTF(entry.getKey());
+                            ShardProtocol.writeResults(out, entry.getValue());
+                        }
+                    };
+                };
+            }
+            default:
+                throw new IOException("Unknown operation: " + operation);
+        }
+    }
+
+    /**
+     * Search of a request whose arguments were read
+     */
+    private interface Search {
+        /**
+         * Runs the search
+         *
+         * @return writer of the results
+         */
+        public Response run();
+    }
+
+    /**
+     * Writer of the results of a search
+     */
+    private interface Response {
+        /**
+         * Writes the results
+         *
+         * @param out stream to write
+         * @throws IOException if an IO error occurs
+         */
+        public void write(DataOutputStream out) throws IOException;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (connections) {
+            serverSocket.close();
+            for (Socket socket : connections) {
+                socket.close();
+            }
+        }
+    }
+}
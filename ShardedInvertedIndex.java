@@ -0,0 +1,409 @@
+package edu.usfca.cs272;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Inverted index split into shards that each hold the postings of a share of
+ * the locations, picked by the hash of the location. Every shard is a
+ * thread-safe index with its own lock, so writes to different shards never
+ * wait on each other, and searches scatter to the shards in parallel on the
+ * common fork-join pool and merge the sorted results of each shard.
+ *
+ * All postings of a location live in one shard, so count scores, phrase and
+ * boolean queries are exactly those of a single index. TF-IDF and BM25 use the
+ * document frequencies and lengths of each shard, like most sharded search
+ * engines; with locations spread by hash they stay close to the global ones.
+ *
+ * The shards may also be {@link RemoteShardIndex} instances held by shard
+ * servers in other processes. A shard that fails or times out is left out of
+ * the results, which are then not cached.
+ *
+ * @author Alessandro Barrera
+ *
+ */
+public class ShardedInvertedIndex extends ThreadSafeInvertedIndex {
+    /** Logger used for this class. */
+    private static final Logger log = LogManager.getLogger();
+
+    /**
+     * Shards in hash order
+     */
+    private final List<ThreadSafeInvertedIndex> shards;
+
+    /**
+     * Whether top-K search walks postings ordered by score contribution
+     */
+    private final boolean impactOrdered;
+
+    /**
+     * Initializes an empty sharded index without a result cache
+     *
+     * @param shards number of shards
+     */
+    public ShardedInvertedIndex(int shards) {
+        this(shards, null, ScoringModel.COUNT, false);
+    }
+
+    /**
+     * Initializes an empty sharded index
+     *
+     * @param shards        number of shards
+     * @param cache         of search results, or null to disable caching
+     * @param model         used to score search results
+     * @param impactOrdered whether top-K search walks postings ordered by score
+     *                      contribution instead of by location
+     */
+    public ShardedInvertedIndex(int shards, SearchCache cache, ScoringModel model, boolean impactOrdered) {
+        this(localShards(shards, model, impactOrdered), cache, model, impactOrdered);
+    }
+
+    /**
+     * Initializes a sharded index over existing shards, such as remote shards
+     *
+     * @param shards        in hash order
+     * @param cache         of search results, or null to disable caching
+     * @param model         used to score search results
+     * @param impactOrdered whether top-K search walks postings ordered by score
+     *                      contribution instead of by location
+     */
+    public ShardedInvertedIndex(List<? extends ThreadSafeInvertedIndex> shards, SearchCache cache,
+            ScoringModel model, boolean impactOrdered) {
+        super(cache, model, impactOrdered);
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("A sharded index needs at least one shard");
+        }
+        this.shards = List.copyOf(shards);
+        this.impactOrdered = impactOrdered;
+    }
+
+    /**
+     * Creates empty in-memory shards
+     *
+     * @param shards        number of shards
+     * @param model         used to score search results
+     * @param impactOrdered whether top-K search walks postings ordered by score
+     *                      contribution instead of by location
+     * @return list of shards
+     */
+    private static List<ThreadSafeInvertedIndex> localShards(int shards, ScoringModel model,
+            boolean impactOrdered) {
+        List<ThreadSafeInvertedIndex> local = new ArrayList<>();
+        for (int i = 0; i < Math.max(1, shards); i++) {
+            local.add(new ThreadSafeInvertedIndex(null, model, impactOrdered));
+        }
+        return local;
+    }
+
+    /**
+     * Returns the number of shards
+     *
+     * @return number of shards
+     */
+    public int getShards() {
+        return shards.size();
+    }
+
+    /**
+     * Returns the shard holding a location
+     *
+     * @param location to find
+     * @return shard of the location
+     */
+    private ThreadSafeInvertedIndex shard(String location) {
+        return shards.get(Math.floorMod(location.hashCode(), shards.size()));
+    }
+
+    /**
+     * Runs a search on every shard in parallel. A shard that fails with an
+     * {@link UncheckedIOException} contributes the fallback instead, and the
+     * cache is invalidated so the partial results of this search are not cached.
+     *
+     * @param <T>      type of the results of one shard
+     * @param search   to run on each shard
+     * @param fallback results of a shard that failed
+     * @return results of each shard in shard order
+     */
+    private <T> List<T> scatter(Function<ThreadSafeInvertedIndex, T> search, T fallback) {
+        List<ForkJoinTask<T>> tasks = new ArrayList<>(shards.size());
+        for (int i = 1; i < shards.size(); i++) {
+            ThreadSafeInvertedIndex shard = shards.get(i);
+            tasks.add(ForkJoinPool.commonPool().submit(() -> search.apply(shard)));
+        }
+
+        List<T> results = new ArrayList<>(shards.size());
+        try {
+            results.add(search.apply(shards.get(0)));
+        } catch (UncheckedIOException e) {
+            results.add(failed(e, fallback));
+        }
+        for (ForkJoinTask<T> task : tasks) {
+            try {
+                results.add(task.join());
+            } catch (UncheckedIOException e) {
+                results.add(failed(e, fallback));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Handles a shard that failed during a search
+     *
+     * @param <T>      type of the results of one shard
+     * @param error    of the shard
+     * @param fallback results of the shard
+     * @return fallback
+     */
+    private <T> T failed(UncheckedIOException error, T fallback) {
+        log.warn("Answering with partial results: {}", error.getMessage());
+        invalidate();
+        return fallback;
+    }
+
+    /**
+     * Merges the sorted results of every shard
+     *
+     * @param results sorted results of each shard
+     * @param limit   maximum number of results, or 0 for every result
+     * @return sorted list of search results
+     */
+    private static List<SingleSearchResult> gather(List<List<SingleSearchResult>> results, int limit) {
+        List<SingleSearchResult> searchResults = new ArrayList<>();
+        for (List<SingleSearchResult> shardResults : results) {
+            searchResults.addAll(shardResults);
+        }
+
+        // each shard's results are one sorted run, which the sort merges
+        Collections.sort(searchResults);
+        if (limit > 0 && searchResults.size() > limit) {
+            return new ArrayList<>(searchResults.subList(0, limit));
+        }
+        return searchResults;
+    }
+
+    @Override
+    public void add(String word, String location, int position) {
+        shard(location).add(word, location, position);
+        invalidate();
+    }
+
+    @Override
+    public void addAll(List<String> words, String location) {
+        shard(location).addAll(words, location);
+        invalidate();
+    }
+
+    @Override
+    public void addAll(InvertedIndex local) {
+        Set<String> locations = local.getFileCount().keySet();
+        if (locations.size() == 1) {
+            shard(locations.iterator().next()).addAll(local);
+        } else {
+            for (ThreadSafeInvertedIndex shard : shards) {
+                InvertedIndex part = local.copy(location -> shard(location) == shard);
+                if (!part.getFileCount().isEmpty()) {
+                    shard.addAll(part);
+                }
+            }
+        }
+        invalidate();
+    }
+
+    @Override
+    public boolean remove(String location) {
+        boolean removed = shard(location).remove(location);
+        invalidate();
+        return removed;
+    }
+
+    @Override
+    public void replace(String location, InvertedIndex local) {
+        shard(location).replace(location, local);
+        invalidate();
+    }
+
+    @Override
+    public void replaceAll(Collection<String> locations, InvertedIndex local) {
+        for (ThreadSafeInvertedIndex shard : shards) {
+            List<String> replaced = new ArrayList<>();
+            for (String location : locations) {
+                if (shard(location) == shard) {
+                    replaced.add(location);
+                }
+            }
+            InvertedIndex part = local.copy(location -> shard(location) == shard);
+            if (!replaced.isEmpty() || !part.getFileCount().isEmpty()) {
+                shard.replaceAll(replaced, part);
+            }
+        }
+        invalidate();
+    }
+
+    @Override
+    public InvertedIndex copy(Predicate<String> locations) {
+        InvertedIndex copy = new InvertedIndex(getScoringModel(), impactOrdered);
+        for (ThreadSafeInvertedIndex shard : shards) {
+            copy.addAll(shard.copy(locations));
+        }
+        return copy;
+    }
+
+    @Override
+    public boolean contains(String word) {
+        for (ThreadSafeInvertedIndex shard : shards) {
+            if (shard.contains(word)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean contains(String word, String location) {
+        return shard(location).contains(word, location);
+    }
+
+    @Override
+    public boolean contains(String word, String location, Integer index) {
+        return shard(location).contains(word, location, index);
+    }
+
+    @Override
+    public boolean containsLocation(String location) {
+        return shard(location).containsLocation(location);
+    }
+
+    @Override
+    public List<SingleSearchResult> exactSearch(Set<String> parsedWords) {
+        return gather(scatter(shard -> shard.exactSearch(parsedWords), List.of()), 0);
+    }
+
+    @Override
+    public List<SingleSearchResult> partialSearch(Set<String> parsedWords) {
+        return gather(scatter(shard -> shard.partialSearch(parsedWords), List.of()), 0);
+    }
+
+    @Override
+    public List<SingleSearchResult> topSearch(Set<String> parsedWords, boolean exact, int limit) {
+        return gather(scatter(shard -> shard.topSearch(parsedWords, exact, limit), List.of()), limit);
+    }
+
+    @Override
+    public List<SingleSearchResult> impactSearch(Set<String> parsedWords, boolean exact, int limit) {
+        return gather(scatter(shard -> shard.impactSearch(parsedWords, exact, limit), List.of()), limit);
+    }
+
+    @Override
+    public List<SingleSearchResult> phraseSearch(PhraseQuery query) {
+        return gather(scatter(shard -> shard.phraseSearch(query), List.of()), 0);
+    }
+
+    @Override
+    public List<SingleSearchResult> booleanSearch(BooleanQuery query, boolean exact) {
+        return gather(scatter(shard -> shard.booleanSearch(query, exact), List.of()), 0);
+    }
+
+    @Override
+    protected Map<String, List<SingleSearchResult>> searchBatch(Map<String, Set<String>> queries, boolean exact) {
+        List<Map<String, List<SingleSearchResult>>> results = scatter(shard -> shard.batchSearch(queries, exact),
+                Map.of());
+
+        Map<String, List<SingleSearchResult>> searchResults = new HashMap<>();
+        for (String key : queries.keySet()) {
+            List<List<SingleSearchResult>> shardResults = new ArrayList<>(results.size());
+            for (Map<String, List<SingleSearchResult>> result : results) {
+                shardResults.add(result.getOrDefault(key, Collections.emptyList()));
+            }
+            searchResults.put(key, gather(shardResults, 0));
+        }
+        return searchResults;
+    }
+
+    @Override
+    public Collection<String> get() {
+        TreeSet<String> words = new TreeSet<>();
+        for (ThreadSafeInvertedIndex shard : shards) {
+            words.addAll(shard.get());
+        }
+        return Collections.unmodifiableCollection(words);
+    }
+
+    @Override
+    public Collection<String> get(String word) {
+        TreeSet<String> locations = new TreeSet<>();
+        for (ThreadSafeInvertedIndex shard : shards) {
+            locations.addAll(shard.get(word));
+        }
+        return Collections.unmodifiableSet(locations);
+    }
+
+    @Override
+    public Collection<Integer> get(String word, String location) {
+        return shard(location).get(word, location);
+    }
+
+    @Override
+    public Map<String, Integer> getFileCount() {
+        TreeMap<String, Integer> fileCount = new TreeMap<>();
+        for (ThreadSafeInvertedIndex shard : shards) {
+            fileCount.putAll(shard.getFileCount());
+        }
+        return Collections.unmodifiableMap(fileCount);
+    }
+
+    @Override
+    public int size() {
+        return get().size();
+    }
+
+    @Override
+    public int size(String word) {
+        int size = -1;
+        for (ThreadSafeInvertedIndex shard : shards) {
+            int shardSize = shard.size(word);
+            if (shardSize >= 0) {
+                size = Math.max(size, 0) + shardSize;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public int size(String word, String location) {
+        return shard(location).size(word, location);
+    }
+
+    @Override
+    public String toString() {
+        return copy(location -> true).toString();
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        copy(location -> true).write(out);
+    }
+
+    @Override
+    public void toJSON(Path writer) throws IOException {
+        copy(location -> true).toJSON(writer);
+    }
+}
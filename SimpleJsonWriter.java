@@ -457,9 +457,54 @@ public class SimpleJsonWriter {
         writer.write(": " + entry.getValue());
     }
 
+    /**
+     * Writes the string elements as a pretty JSON object to file.
+     *
+     * @param elements the elements to write
+     * @param path     the file path to use
+     * @throws IOException if an IO error occurs
+     *
+     * @see #writeStringObject(Map, Writer, int)
+     */
+    public static void writeStringObject(Map<String, String> elements, Path path) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(path, UTF_8)) {
+            writeStringObject(elements, writer, 0);
+        }
+    }
+
+    /**
+     * Writes the string elements as a pretty JSON object, with each value in
+     * quotes.
+     *
+     * @param elements the elements to write
+     * @param writer   the writer to use
+     * @param indent   the initial indent level; the first bracket is not indented,
+     *                 inner elements are indented by one, and the last bracket is
+     *                 indented at the initial indentation level
+     * @throws IOException if an IO error occurs
+     */
+    public static void writeStringObject(Map<String, String> elements, Writer writer, int indent)
+            throws IOException {
+        writer.write("{");
+        var iterator = elements.entrySet().iterator();
+        while (iterator.hasNext()) {
+            var entry = iterator.next();
+            writer.write("\n");
+            writeQuote(entry.getKey(), writer, indent + 1);
+            writer.write(": ");
+            writeQuote(entry.getValue(), writer, 0);
+            if (iterator.hasNext()) {
+                writer.write(",");
+            }
+        }
+        writer.write("\n");
+        writeIndent(writer, indent);
+        writer.write("}");
+    }
+
     /**
      * Indents and then writes the text element surrounded by {@code " "} quotation
-     * marks.
+     * marks. Quotation marks and backslashes in the element are escaped.
      *
      * @param element the element to write
      * @param writer  the writer to use
@@ -469,7 +514,7 @@ public class SimpleJsonWriter {
     public static void writeQuote(String element, Writer writer, int indent) throws IOException {
         writeIndent(writer, indent);
         writer.write('"');
-        writer.write(element);
+        writer.write(element.replace("\\", "\\\\").replace("\"", "\\\""));
         writer.write('"');
     }
 
@@ -526,21 +571,32 @@ public class SimpleJsonWriter {
             Iterator<String> iterator, Writer writer) throws IOException {
         var temp = iterator.next();
         String word = temp.toString();
-        writeQuote(word, writer, 1);
-        writer.write(": ");
-        writer.write("[");
-        if (storeSearchData.get(word) != null) {
-            multipleSearchResults(storeSearchData.get(word).listIterator(), writer);
-        }
+        writeSearchEntry(word, storeSearchData.get(word), writer);
         if (iterator.hasNext()) {
-            writer.write("\n");
-            writeIndent("]", writer, 1);
             writer.write(",");
-        } else {
-            writer.write("\n");
-            writeIndent("]", writer, 1);
         }
         writer.write("\n");
 
     }
+
+    /**
+     * Writes the search results of one query as a member of the object written by
+     * {@link #writeSearch(Map, Writer)}, without the separating comma or newline
+     *
+     * @param query   stemmed query
+     * @param results list of single search results or null
+     * @param writer  to write
+     * @throws IOException if an IO error occurs
+     */
+    public static void writeSearchEntry(String query, List<SingleSearchResult> results, Writer writer)
+            throws IOException {
+        writeQuote(query, writer, 1);
+        writer.write(": ");
+        writer.write("[");
+        if (results != null) {
+            multipleSearchResults(results.listIterator(), writer);
+        }
+        writer.write("\n");
+        writeIndent("]", writer, 1);
+    }
 }
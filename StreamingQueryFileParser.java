@@ -0,0 +1,476 @@
+package edu.usfca.cs272;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.usfca.cs272.InvertedIndex.SingleSearchResult;
+
+/**
+ * Query file parser for query files too large to keep every result in memory.
+ * Results are rendered to their JSON form as soon as they are searched and
+ * buffered in sorted order. Once the buffer passes a size limit it is spilled to
+ * a temporary run file, and {@link #writeJSON(Path)} merges the sorted runs into
+ * the output, dropping repeated queries. The run files are deleted when the
+ * parser is closed. The output is identical to {@link QueryFileParser}, while
+ * memory stays bounded by the buffer size no matter how many queries the file
+ * has.
+ *
+ * @author Alessandro Barrera
+ *
+ */
+public class StreamingQueryFileParser implements QueryFileParserInterface, AutoCloseable {
+    /**
+     * The default number of buffered characters before a run is spilled.
+     */
+    public static final int DEFAULT_RUN_BUFFER = 8 * 1024 * 1024;
+
+    /**
+     * Maximum number of runs merged at once, so very large query files do not run
+     * out of file handles
+     */
+    private static final int MAX_FAN_IN = 64;
+
+    /** Logger used for this class. */
+    private static final Logger log = LogManager.getLogger();
+
+    /**
+     * Inverted Index
+     */
+    private final InvertedIndex index;
+
+    /**
+     * Maximum number of buffered characters before a run is spilled
+     */
+    private final int runBuffer;
+
+    /**
+     * Rendered results of the current run by stemmed query
+     */
+    private final TreeMap<String, String> buffer;
+
+    /**
+     * Number of characters in the buffer
+     */
+    private long buffered;
+
+    /**
+     * Sorted run files spilled so far
+     */
+    private final List<Path> runs;
+
+    /**
+     * Directory of the run files, created on the first spill
+     */
+    private Path directory;
+
+    /**
+     * Constructor of StreamingQueryFileParser
+     *
+     * @param index Inverted Index
+     */
+    public StreamingQueryFileParser(InvertedIndex index) {
+        this(index, DEFAULT_RUN_BUFFER);
+    }
+
+    /**
+     * Constructor of StreamingQueryFileParser
+     *
+     * @param index     Inverted Index
+     * @param runBuffer maximum number of buffered characters before a run is
+     *                  spilled
+     */
+    public StreamingQueryFileParser(InvertedIndex index, int runBuffer) {
+        this.index = index;
+        this.runBuffer = Math.max(1, runBuffer);
+        this.buffer = new TreeMap<>();
+        this.buffered = 0;
+        this.runs = new ArrayList<>();
+        this.directory = null;
+    }
+
+    /**
+     * Parse file method which parses the entire file, searching the distinct
+     * queries in batches so queries sharing words share their lookups
+     *
+     * @param file  to parse
+     * @param exact keyword to do an exact search or not
+     * @throws IOException if an IO error occurs
+     */
+    @Override
+    public void parseFile(Path file, boolean exact) throws IOException {
+        Map<String, Set<String>> batch = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, UTF_8);) {
+            String line = null;
+            while ((line = reader.readLine()) != null) {
+                SearchQuery query = SearchQuery.parse(line);
+                if (query != null) {
+                    searchQuery(query, exact);
+                    continue;
+                }
+
+                var uniqueSet = TextFileStemmer.uniqueStems(line);
+
+                String stemmedLine = String.join(" ", uniqueSet);
+                if (!stemmedLine.isEmpty() && !buffer.containsKey(stemmedLine)) {
+                    batch.put(stemmedLine, uniqueSet);
+                    if (batch.size() >= QueryFileParser.BATCH_SIZE) {
+                        store(index.batchSearch(batch, exact));
+                        batch.clear();
+                    }
+                }
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            store(index.batchSearch(batch, exact));
+        }
+    }
+
+    /**
+     * Parse line method to parse one line
+     *
+     * @param line  to parse
+     * @param exact keyword to do an exact search or not
+     * @throws IOException if an IO error occurs
+     */
+    @Override
+    public void parseLine(String line, boolean exact) throws IOException {
+        SearchQuery query = SearchQuery.parse(line);
+        if (query != null) {
+            searchQuery(query, exact);
+            return;
+        }
+
+        var uniqueSet = TextFileStemmer.uniqueStems(line);
+
+        String stemmedLine = String.join(" ", uniqueSet);
+        if (!stemmedLine.isEmpty() && !buffer.containsKey(stemmedLine)) {
+            store(Map.of(stemmedLine, index.search(uniqueSet, exact)));
+        }
+    }
+
+    /**
+     * Searches a phrase, proximity or boolean query unless it is already
+     * buffered
+     *
+     * @param query to search
+     * @param exact keyword to do an exact search or not
+     * @throws IOException if an IO error occurs
+     */
+    private void searchQuery(SearchQuery query, boolean exact) throws IOException {
+        String key = query.toString();
+        if (!buffer.containsKey(key)) {
+            store(Map.of(key, index.search(query, exact)));
+        }
+    }
+
+    /**
+     * Renders the search results into the buffer, spilling it once full
+     *
+     * @param results map from stemmed query to its search results
+     * @throws IOException if an IO error occurs
+     */
+    private void store(Map<String, List<SingleSearchResult>> results) throws IOException {
+        for (var entry : results.entrySet()) {
+            StringWriter writer = new StringWriter();
+            SimpleJsonWriter.writeSearchEntry(entry.getKey(), entry.getValue(), writer);
+            String fragment = writer.toString();
+            if (buffer.put(entry.getKey(), fragment) == null) {
+                buffered += entry.getKey().length() + fragment.length();
+            }
+        }
+
+        if (buffered >= runBuffer) {
+            spill();
+        }
+    }
+
+    /**
+     * Writes the buffer to a new sorted run file and clears it
+     *
+     * @throws IOException if an IO error occurs
+     */
+    private void spill() throws IOException {
+        if (buffer.isEmpty()) {
+            return;
+        }
+
+        Path run = newRun();
+        try (DataOutputStream out = openRun(run)) {
+            for (var entry : buffer.entrySet()) {
+                writeRecord(out, entry.getKey(), entry.getValue());
+            }
+        }
+        log.debug("Spilled {} queries ({} chars) to {}", buffer.size(), buffered, run);
+
+        runs.add(run);
+        buffer.clear();
+        buffered = 0;
+    }
+
+    /**
+     * Write to JSON format by merging the sorted runs. Groups of runs are merged
+     * into one until few enough are left to merge at once; those are kept, so the
+     * results can be written again until the parser is closed.
+     *
+     * @param output address to write
+     * @throws IOException if an IO error occurs
+     */
+    @Override
+    public void writeJSON(Path output) throws IOException {
+        spill();
+
+        while (runs.size() > MAX_FAN_IN) {
+            List<Path> group = new ArrayList<>(runs.subList(0, MAX_FAN_IN));
+            Path merged = newRun();
+            try (DataOutputStream out = openRun(merged)) {
+                merge(group, (query, fragment) -> writeRecord(out, query, fragment));
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(merged);
+                throw e;
+            }
+            for (Path run : group) {
+                Files.delete(run);
+            }
+            runs.removeAll(group);
+            runs.add(merged);
+        }
+
+        try (BufferedWriter writer = Files.newBufferedWriter(output, UTF_8)) {
+            writer.write("{\n");
+            boolean[] first = { true };
+            merge(runs, (query, fragment) -> {
+                if (!first[0]) {
+                    writer.write(",\n");
+                }
+                writer.write(fragment);
+                first[0] = false;
+            });
+            if (!first[0]) {
+                writer.write("\n");
+            }
+            writer.write("}");
+        }
+    }
+
+    /**
+     * Deletes every run file and their directory
+     *
+     * @throws IOException if an IO error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        for (Path run : runs) {
+            Files.deleteIfExists(run);
+        }
+        runs.clear();
+        if (directory != null) {
+            Files.deleteIfExists(directory);
+            directory = null;
+        }
+    }
+
+    /**
+     * Streams the records of the sorted runs in query order, passing each distinct
+     * query once
+     *
+     * @param group    run files to merge
+     * @param consumer to call for each distinct query
+     * @throws IOException if an IO error occurs
+     */
+    private static void merge(List<Path> group, RecordConsumer consumer) throws IOException {
+        PriorityQueue<Run> heap = new PriorityQueue<>();
+        try {
+            for (Path path : group) {
+                Run run = new Run(path);
+                if (run.next()) {
+                    heap.add(run);
+                } else {
+                    run.close();
+                }
+            }
+
+            String last = null;
+            while (!heap.isEmpty()) {
+                Run run = heap.poll();
+                if (!run.query.equals(last)) {
+                    consumer.accept(run.query, run.fragment);
+                    last = run.query;
+                }
+                if (run.next()) {
+                    heap.add(run);
+                } else {
+                    run.close();
+                }
+            }
+        } finally {
+            for (Run run : heap) {
+                run.close();
+            }
+        }
+    }
+
+    /**
+     * Creates a new empty run file, deleted once it is merged into another run or
+     * the parser is closed
+     *
+     * @return path of the run file
+     * @throws IOException if an IO error occurs
+     */
+    private Path newRun() throws IOException {
+        if (directory == null) {
+            directory = Files.createTempDirectory("queries");
+        }
+        return Files.createTempFile(directory, "run", ".bin");
+    }
+
+    /**
+     * Opens a run file for writing
+     *
+     * @param run path of the run file
+     * @return output stream
+     * @throws IOException if an IO error occurs
+     */
+    private static DataOutputStream openRun(Path run) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run)));
+    }
+
+    /**
+     * Writes one record of a run file: the query and its rendered results, each as
+     * a length-prefixed UTF-8 string
+     *
+     * @param out      stream to write
+     * @param query    stemmed query
+     * @param fragment rendered search results
+     * @throws IOException if an IO error occurs
+     */
+    private static void writeRecord(DataOutputStream out, String query, String fragment) throws IOException {
+        writeString(out, query);
+        writeString(out, fragment);
+    }
+
+    /**
+     * Writes a length-prefixed UTF-8 string. Unlike
+     * {@link DataOutputStream#writeUTF(String)} this has no 64 KB limit.
+     *
+     * @param out    stream to write
+     * @param string to write
+     * @throws IOException if an IO error occurs
+     */
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d buffered queries, %d spilled runs", buffer.size(), runs.size());
+    }
+
+    /**
+     * Consumer of run records
+     */
+    private interface RecordConsumer {
+        /**
+         * Accepts one record
+         *
+         * @param query    stemmed query
+         * @param fragment rendered search results
+         * @throws IOException if an IO error occurs
+         */
+        public void accept(String query, String fragment) throws IOException;
+    }
+
+    /**
+     * Reader of one sorted run file, ordered by its current query
+     */
+    private static class Run implements Comparable<Run>, AutoCloseable {
+        /**
+         * Stream reading the run file
+         */
+        private final DataInputStream in;
+
+        /**
+         * Current query
+         */
+        private String query;
+
+        /**
+         * Rendered results of the current query
+         */
+        private String fragment;
+
+        /**
+         * Opens the run file
+         *
+         * @param path of the run file
+         * @throws IOException if an IO error occurs
+         */
+        public Run(Path path) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));
+        }
+
+        /**
+         * Reads the next record
+         *
+         * @return false if the run has no more records
+         * @throws IOException if an IO error occurs
+         */
+        public boolean next() throws IOException {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return false;
+            }
+            query = readString(length);
+            fragment = readString(in.readInt());
+            return true;
+        }
+
+        /**
+         * Reads a UTF-8 string of the given length
+         *
+         * @param length in bytes
+         * @return string read
+         * @throws IOException if an IO error occurs
+         */
+        private String readString(int length) throws IOException {
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, UTF_8);
+        }
+
+        @Override
+        public int compareTo(Run other) {
+            return query.compareTo(other.query);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -1,11 +1,20 @@
 package edu.usfca.cs272;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /**
  *
@@ -13,46 +22,266 @@ import java.util.Set;
  *
  */
 public class ThreadSafeInvertedIndex extends InvertedIndex {
+    /** Logger used for this class. */
+    private static final Logger log = LogManager.getLogger();
+
     /**
      * The lock used to protect concurrent access to the underlying set.
      */
     private final SimpleReadWriteLock lock;
 
+    /**
+     * Cache of search results, or null if searches are not cached
+     */
+    private final SearchCache cache;
+
+    /**
+     * Log every write is appended to before it is applied, or null if writes are
+     * not logged
+     */
+    private final WriteAheadLog wal;
+
+    /**
+     * Number of writes in progress on the thread holding the write lock, so the
+     * writes that addAll and replace are made of are not logged again
+     */
+    private int nestedWrites;
+
     /**
      * Initialized a thread-safe Inverted Index
      */
     public ThreadSafeInvertedIndex() {
+        this(null);
+    }
+
+    /**
+     * Initialized a thread-safe Inverted Index whose searches go through a result
+     * cache. Cached results are returned as unmodifiable lists.
+     *
+     * @param cache of search results, or null to disable caching
+     */
+    public ThreadSafeInvertedIndex(SearchCache cache) {
+        this(cache, ScoringModel.COUNT);
+    }
+
+    /**
+     * Initialized a thread-safe Inverted Index with a result cache and a scoring
+     * model
+     *
+     * @param cache of search results, or null to disable caching
+     * @param model used to score search results
+     */
+    public ThreadSafeInvertedIndex(SearchCache cache, ScoringModel model) {
+        this(cache, model, false);
+    }
+
+    /**
+     * Initialized a thread-safe Inverted Index with a result cache, a scoring
+     * model and the choice of top-K search
+     *
+     * @param cache         of search results, or null to disable caching
+     * @param model         used to score search results
+     * @param impactOrdered whether top-K search walks postings ordered by score
+     *                      contribution instead of by location
+     */
+    public ThreadSafeInvertedIndex(SearchCache cache, ScoringModel model, boolean impactOrdered) {
+        this(cache, model, impactOrdered, null);
+    }
+
+    /**
+     * Initialized a thread-safe Inverted Index whose writes are appended to a
+     * write-ahead log, so replicas can apply them too
+     *
+     * @param cache         of search results, or null to disable caching
+     * @param model         used to score search results
+     * @param impactOrdered whether top-K search walks postings ordered by score
+     *                      contribution instead of by location
+     * @param wal           log of the writes, or null to not log them
+     */
+    public ThreadSafeInvertedIndex(SearchCache cache, ScoringModel model, boolean impactOrdered,
+            WriteAheadLog wal) {
+        super(model, impactOrdered);
         this.lock = new SimpleReadWriteLock();
+        this.cache = cache;
+        this.wal = wal;
     }
 
-    @Override
-    public void add(String word, String location, int position) {
+    /**
+     * Drops the cached searches after a write. Must be called once the write is
+     * visible to searches, before the write lock (if any) is released.
+     */
+    protected void invalidate() {
+        if (cache != null) {
+            cache.invalidate();
+        }
+    }
+
+    /**
+     * Runs a write holding the write lock. The write is appended to the log
+     * first, unless it is part of another write of this index. Once the lock is
+     * released the record is committed, so writers on other threads share the
+     * fsync, and a checkpoint is taken if one is due.
+     *
+     * @param <T>    type returned by the write
+     * @param write  to apply
+     * @param record appending the write to the log
+     * @return value returned by the write
+     * @throws UncheckedIOException if the write cannot be logged, in which case
+     *                              it is not applied, or cannot be made durable
+     */
+    private <T> T writeLocked(Supplier<T> write, LoggedWrite record) {
+        boolean outer;
+        long lsn = 0;
+        T result;
         lock.writeLock().lock();
         try {
-            super.add(word, location, position);
+            outer = nestedWrites++ == 0;
+            if (outer && wal != null) {
+                try {
+                    lsn = record.append(wal);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Unable to log a write", e);
+                }
+            }
+            result = write.get();
+            invalidate();
         } finally {
+            nestedWrites--;
             lock.writeLock().unlock();
         }
 
+        if (outer && wal != null) {
+            try {
+                wal.commit(lsn);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to commit a logged write", e);
+            }
+            if (wal.checkpointDue()) {
+                try {
+                    checkpoint();
+                } catch (IOException e) {
+                    log.warn("Unable to checkpoint the index: {}", e.getMessage());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Write appended to the log
+     */
+    private interface LoggedWrite {
+        /**
+         * Appends the write
+         *
+         * @param wal log to append to
+         * @return LSN of the record
+         * @throws IOException if an IO error occurs
+         */
+        public long append(WriteAheadLog wal) throws IOException;
+    }
+
+    @Override
+    public void add(String word, String location, int position) {
+        writeLocked(() -> {
+            super.add(word, location, position);
+            return null;
+        }, wal -> wal.add(word, location, position));
     }
 
     @Override
     public void addAll(List<String> words, String location) {
+        writeLocked(() -> {
+            super.addAll(words, location);
+            return null;
+        }, wal -> wal.addAll(words, location));
+    }
+
+    @Override
+    public void addAll(InvertedIndex local) {
+        writeLocked(() -> {
+            super.addAll(local);
+            return null;
+        }, wal -> wal.addAll(local));
+    }
+
+    @Override
+    public boolean remove(String location) {
+        return writeLocked(() -> super.remove(location), wal -> wal.remove(location));
+    }
+
+    @Override
+    public void replace(String location, InvertedIndex local) {
+        writeLocked(() -> {
+            super.replace(location, local);
+            return null;
+        }, wal -> wal.replace(location, local));
+    }
+
+    @Override
+    public void replaceAll(Collection<String> locations, InvertedIndex local) {
+        writeLocked(() -> {
+            super.replaceAll(locations, local);
+            return null;
+        }, wal -> wal.replaceAll(locations, local));
+    }
+
+    /**
+     * Recovers the index from its write-ahead log after a restart, replaying the
+     * checkpoint and the records after it without logging them again. Must be
+     * called on an empty index, before anything else is written.
+     *
+     * @return number of records replayed after the checkpoint
+     * @throws IOException if an IO error occurs or the log is corrupt
+     */
+    public long recover() throws IOException {
+        if (wal == null) {
+            return 0;
+        }
+
         lock.writeLock().lock();
+        nestedWrites++;
         try {
-            super.addAll(words, location);
+            return wal.replay(this);
         } finally {
+            nestedWrites--;
+            invalidate();
             lock.writeLock().unlock();
         }
     }
 
+    /**
+     * Writes a snapshot of the index to the write-ahead log as its checkpoint,
+     * so replicas replay only the writes made since. The snapshot is copied
+     * holding the read lock, and written to disk without it. Does nothing if the
+     * writes are not logged.
+     *
+     * @throws IOException if an IO error occurs
+     */
+    public void checkpoint() throws IOException {
+        if (wal == null) {
+            return;
+        }
+
+        InvertedIndex snapshot;
+        long lsn;
+        lock.readLock().lock();
+        try {
+            snapshot = super.copy(location -> true);
+            lsn = wal.roll();
+        } finally {
+            lock.readLock().unlock();
+        }
+        wal.checkpoint(snapshot, lsn);
+    }
+
     @Override
-    public void addAll(InvertedIndex local) {
-        lock.writeLock().lock();
+    public InvertedIndex copy(Predicate<String> locations) {
+        lock.readLock().lock();
         try {
-            super.addAll(local);
+            return super.copy(locations);
         } finally {
-            lock.writeLock().unlock();
+            lock.readLock().unlock();
         }
     }
 
@@ -86,6 +315,16 @@ public class ThreadSafeInvertedIndex extends InvertedIndex {
         }
     }
 
+    @Override
+    public boolean containsLocation(String location) {
+        lock.readLock().lock();
+        try {
+            return super.containsLocation(location);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
     @Override
     public List<SingleSearchResult> exactSearch(Set<String> parsedWords) {
         lock.readLock().lock();
@@ -106,6 +345,136 @@ public class ThreadSafeInvertedIndex extends InvertedIndex {
         }
     }
 
+    @Override
+    public List<SingleSearchResult> search(Set<String> parsedWords, boolean exact) {
+        if (cache == null) {
+            return super.search(parsedWords, exact);
+        }
+
+        String key = SearchCache.key(parsedWords, exact);
+        List<SingleSearchResult> results = cache.get(key);
+        if (results == null) {
+            long version = cache.version();
+            results = Collections.unmodifiableList(super.search(parsedWords, exact));
+            cache.put(key, version, results);
+        }
+        return results;
+    }
+
+    @Override
+    public List<SingleSearchResult> search(Set<String> parsedWords, boolean exact, int limit) {
+        if (cache != null && limit > 0) {
+            List<SingleSearchResult> cached = cache.get(SearchCache.key(parsedWords, exact));
+            if (cached != null) {
+                return cached.subList(0, Math.min(limit, cached.size()));
+            }
+        }
+        return super.search(parsedWords, exact, limit);
+    }
+
+    @Override
+    public List<SingleSearchResult> topSearch(Set<String> parsedWords, boolean exact, int limit) {
+        lock.readLock().lock();
+        try {
+            return super.topSearch(parsedWords, exact, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<SingleSearchResult> impactSearch(Set<String> parsedWords, boolean exact, int limit) {
+        lock.readLock().lock();
+        try {
+            return super.impactSearch(parsedWords, exact, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<SingleSearchResult> phraseSearch(PhraseQuery query) {
+        lock.readLock().lock();
+        try {
+            return super.phraseSearch(query);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<SingleSearchResult> booleanSearch(BooleanQuery query, boolean exact) {
+        lock.readLock().lock();
+        try {
+            return super.booleanSearch(query, exact);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<SingleSearchResult> search(SearchQuery query, boolean exact) {
+        if (cache == null) {
+            return super.search(query, exact);
+        }
+
+        String key = SearchCache.key(query, exact);
+        List<SingleSearchResult> results = cache.get(key);
+        if (results == null) {
+            long version = cache.version();
+            results = Collections.unmodifiableList(super.search(query, exact));
+            cache.put(key, version, results);
+        }
+        return results;
+    }
+
+    @Override
+    public Map<String, List<SingleSearchResult>> batchSearch(Map<String, Set<String>> queries, boolean exact) {
+        if (cache == null) {
+            return searchBatch(queries, exact);
+        }
+
+        Map<String, List<SingleSearchResult>> results = new HashMap<>();
+        Map<String, Set<String>> missing = new HashMap<>();
+        for (var query : queries.entrySet()) {
+            List<SingleSearchResult> cached = cache.get(SearchCache.key(query.getValue(), exact));
+            if (cached == null) {
+                missing.put(query.getKey(), query.getValue());
+            } else {
+                results.put(query.getKey(), cached);
+            }
+        }
+
+        if (missing.isEmpty()) {
+            return results;
+        }
+
+        long version = cache.version();
+        Map<String, List<SingleSearchResult>> found = searchBatch(missing, exact);
+        for (var entry : found.entrySet()) {
+            List<SingleSearchResult> cached = Collections.unmodifiableList(entry.getValue());
+            cache.put(SearchCache.key(missing.get(entry.getKey()), exact), version, cached);
+            results.put(entry.getKey(), cached);
+        }
+        return results;
+    }
+
+    /**
+     * Searches a batch of queries without going through the cache
+     *
+     * @param queries map from query key to the set of parsed words of the query
+     * @param exact   boolean to perform exact or partial search
+     * @return map from query key to its sorted list of search results
+     */
+    protected Map<String, List<SingleSearchResult>> searchBatch(Map<String, Set<String>> queries, boolean exact) {
+        lock.readLock().lock();
+        try {
+            return super.batchSearch(queries, exact);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
     @Override
     public Collection<String> get() {
         lock.readLock().lock();
@@ -176,6 +545,16 @@ public class ThreadSafeInvertedIndex extends InvertedIndex {
         }
     }
 
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        lock.readLock().lock();
+        try {
+            super.write(out);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
     @Override
     public String toString() {
         lock.readLock().lock();
@@ -1,18 +1,37 @@
 package edu.usfca.cs272;
 
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  *
  * Inverted Index Data Structure Builder Class
  */
 public class ThreadSafeInvertedIndexBuilder extends InvertedIndexBuilder {
+    /** The number of bytes of small files indexed and merged by one task. */
+    public static final long BATCH_BYTES = 256 * 1024;
+
+    /** The largest number of files indexed and merged by one task. */
+    public static final int BATCH_FILES = 1024;
+
     /**
      * Work Queue
      */
     private final WorkQueue workQueue;
 
+    /**
+     * First error listing a directory in a task, thrown once the build finishes
+     */
+    private final AtomicReference<IOException> failure;
+
     /**
      * Constructor passed in with the number of threads to multithread
      *
@@ -20,27 +39,47 @@ public class ThreadSafeInvertedIndexBuilder extends InvertedIndexBuilder {
      * @param workQueue used to manage the threads
      */
     public ThreadSafeInvertedIndexBuilder(ThreadSafeInvertedIndex index, WorkQueue workQueue) {
-        super(index);
+        this(index, workQueue, false, null);
+    }
+
+    /**
+     * Constructor passed in with the number of threads to multithread, whether to
+     * resume a build and the manifest to build incrementally
+     *
+     * @param index     to use
+     * @param workQueue used to manage the threads
+     * @param resume    whether files already in the index are skipped
+     * @param manifest  of the files already in the index, or null to index every
+     *                  file
+     */
+    public ThreadSafeInvertedIndexBuilder(ThreadSafeInvertedIndex index, WorkQueue workQueue, boolean resume,
+            IndexManifest manifest) {
+        super(index, resume, manifest);
         this.workQueue = workQueue;
+        this.failure = new AtomicReference<>();
     }
 
     /**
-     * Builder class to initialize the inverted index
+     * Builder class to initialize the inverted index. Directories are listed by
+     * tasks too, so workers never wait on a walk of the tree by one thread.
      *
      * @param path of the text files
      * @throws IOException if an IO error occurs
      */
     @Override
     public void build(Path path) throws IOException {
-//        if (Files.isDirectory(path)) {
-//            traverseDirectory(path);
-//        } else {
-//            workQueue.execute(new Task(path));
-//        }
-
         super.build(path);
         workQueue.finish();
 
+        IOException error = failure.getAndSet(null);
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    @Override
+    public void traverseDirectory(Path directory) {
+        workQueue.execute(new DirectoryTask(directory));
     }
 
     @Override
@@ -48,6 +87,68 @@ public class ThreadSafeInvertedIndexBuilder extends InvertedIndexBuilder {
         workQueue.execute(new Task(file));
     }
 
+    /**
+     * Task listing one directory. Each subdirectory gets its own task. Text files
+     * are grouped into tasks of up to {@link #BATCH_BYTES} bytes or
+     * {@link #BATCH_FILES} files, and a file as large as a whole batch gets a
+     * task of its own.
+     */
+    public class DirectoryTask implements Runnable {
+        /**
+         * Directory to list
+         */
+        private final Path directory;
+
+        /**
+         * Task Constructor
+         *
+         * @param directory to list
+         */
+        public DirectoryTask(Path directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        public void run() {
+            List<Path> files = new ArrayList<>();
+            long bytes = 0;
+            try (DirectoryStream<Path> listing = Files.newDirectoryStream(directory)) {
+                for (Path path : listing) {
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    } catch (IOException e) {
+                        // a broken link or a file deleted since it was listed
+                        continue;
+                    }
+
+                    if (attributes.isDirectory()) {
+                        workQueue.execute(new DirectoryTask(path));
+                    } else if (isTextFile(path) && !skip(path)) {
+                        if (attributes.size() >= BATCH_BYTES) {
+                            workQueue.execute(new Task(path));
+                            continue;
+                        }
+
+                        files.add(path);
+                        bytes += attributes.size();
+                        if (bytes >= BATCH_BYTES || files.size() == BATCH_FILES) {
+                            workQueue.execute(new Task(files));
+                            files = new ArrayList<>();
+                            bytes = 0;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                failure.compareAndSet(null, e);
+            }
+
+            if (!files.isEmpty()) {
+                workQueue.execute(new Task(files));
+            }
+        }
+    }
+
     /**
      * Inner class called Task implementing Runnable
      *
@@ -56,9 +157,9 @@ public class ThreadSafeInvertedIndexBuilder extends InvertedIndexBuilder {
      */
     public class Task implements Runnable {
         /**
-         * File to parse
+         * Files to parse
          */
-        private final Path file;
+        private final List<Path> files;
 
         /**
          * Task Constructor
@@ -66,18 +167,50 @@ public class ThreadSafeInvertedIndexBuilder extends InvertedIndexBuilder {
          * @param file to Parse
          */
         public Task(Path file) {
-            this.file = file;
+            this(List.of(file));
+        }
+
+        /**
+         * Task Constructor for a batch of files, parsed into one local index that is
+         * merged into the index at once
+         *
+         * @param files to Parse
+         */
+        public Task(List<Path> files) {
+            this.files = files;
         }
 
         @Override
         public void run() {
             InvertedIndex local = new InvertedIndex();
-            try {
-                InvertedIndexBuilder.indexWriter(file, local);
-            } catch (IOException e) {
-                e.getCause();
+            Map<String, IndexManifest.Entry> entries = new HashMap<>();
+            for (Path file : files) {
+                try {
+                    IndexManifest.Entry entry = manifest != null ? IndexManifest.describe(file) : null;
+                    InvertedIndexBuilder.indexWriter(file, local);
+                    if (entry != null) {
+                        entries.put(file.toString(), entry);
+                    }
+                } catch (IOException e) {
+                    // recorded as changed, so it is indexed again next time
+                    e.getCause();
+                }
+            }
+
+            if (manifest == null) {
+                index.addAll(local);
+                return;
+            }
+
+            // changed files replace their old postings in one write
+            List<String> locations = new ArrayList<>(files.size());
+            for (Path file : files) {
+                locations.add(file.toString());
+            }
+            index.replaceAll(locations, local);
+            for (var entry : entries.entrySet()) {
+                manifest.put(entry.getKey(), entry.getValue());
             }
-            index.addAll(local);
         }
     }
-}
\ No newline at end of file
+}
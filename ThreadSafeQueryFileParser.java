@@ -1,10 +1,18 @@
 package edu.usfca.cs272;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 import edu.usfca.cs272.InvertedIndex.SingleSearchResult;
 
@@ -15,6 +23,11 @@ import edu.usfca.cs272.InvertedIndex.SingleSearchResult;
  *
  */
 public class ThreadSafeQueryFileParser implements QueryFileParserInterface {
+    /**
+     * Number of query lines handed to each batch task, kept small enough that the
+     * lines of a typical query file still spread across the workers
+     */
+    public static final int BATCH_SIZE = 100;
 
     /**
      * Inverted Index
@@ -22,10 +35,11 @@ public class ThreadSafeQueryFileParser implements QueryFileParserInterface {
     private final ThreadSafeInvertedIndex index;
 
     /**
-     * Map containing the stemmed word as key, the value is a list of all the search
-     * results
+     * Map containing the stemmed word as key, the value is the pending or completed
+     * list of all the search results. The first task to claim a key runs its
+     * search, so each distinct query is searched exactly once.
      */
-    private final Map<String, List<SingleSearchResult>> storeSearchData;
+    private final Map<String, CompletableFuture<List<SingleSearchResult>>> storeSearchData;
 
     /**
      * Work Queue to use for multitheading
@@ -38,7 +52,7 @@ public class ThreadSafeQueryFileParser implements QueryFileParserInterface {
      * @param index Inverted Index
      */
     public ThreadSafeQueryFileParser(ThreadSafeInvertedIndex index) {
-        storeSearchData = new TreeMap<>();
+        storeSearchData = new ConcurrentHashMap<>();
         this.index = index;
         workQueue = null;
     }
@@ -50,7 +64,7 @@ public class ThreadSafeQueryFileParser implements QueryFileParserInterface {
      * @param workQueue     built workQueue
      */
     public ThreadSafeQueryFileParser(ThreadSafeInvertedIndex invertedIndex, WorkQueue workQueue) {
-        storeSearchData = new TreeMap<>();
+        storeSearchData = new ConcurrentHashMap<>();
         this.index = invertedIndex;
         this.workQueue = workQueue;
     }
@@ -64,20 +78,75 @@ public class ThreadSafeQueryFileParser implements QueryFileParserInterface {
      */
     @Override
     public void parseFile(Path file, boolean exact) throws IOException {
-        QueryFileParserInterface.super.parseFile(file, exact);
-        workQueue.finish();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);) {
+            List<String> lines = new ArrayList<>();
+            String line = null;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+                if (lines.size() >= BATCH_SIZE) {
+                    workQueue.execute(new BatchTask(lines, exact));
+                    lines = new ArrayList<>();
+                }
+            }
+
+            if (!lines.isEmpty()) {
+                workQueue.execute(new BatchTask(lines, exact));
+            }
+        } finally {
+            workQueue.finish();
+        }
     }
 
     /**
-     * Write to JSON format
+     * Write to JSON format, sorting the results by query
      *
      * @param output address to write
      * @throws IOException if an IO error occurs
      */
     @Override
     public void writeJSON(Path output) throws IOException {
-        synchronized (storeSearchData) {
-            SimpleJsonWriter.writeSearch(storeSearchData, output);
+        SimpleJsonWriter.writeSearch(sortedSearchData(), output);
+    }
+
+    /**
+     * Returns a sorted copy of the search results, waiting for any search still
+     * running
+     *
+     * @return map from query to search results sorted by query
+     */
+    private Map<String, List<SingleSearchResult>> sortedSearchData() {
+        Map<String, List<SingleSearchResult>> sorted = new TreeMap<>();
+        for (var entry : storeSearchData.entrySet()) {
+            sorted.put(entry.getKey(), entry.getValue().join());
+        }
+        return sorted;
+    }
+
+    @Override
+    public String toString() {
+        return sortedSearchData().toString();
+    }
+
+    /**
+     * Searches a phrase, proximity or boolean query unless another task already
+     * claimed it
+     *
+     * @param query to search
+     * @param exact keyword to do an exact search or not
+     */
+    private void searchQuery(SearchQuery query, boolean exact) {
+        String key = query.toString();
+        var future = new CompletableFuture<List<SingleSearchResult>>();
+        if (storeSearchData.putIfAbsent(key, future) != null) {
+            return;
+        }
+
+        try {
+            future.complete(index.search(query, exact));
+        } catch (RuntimeException e) {
+            storeSearchData.remove(key, future);
+            future.completeExceptionally(e);
+            throw e;
         }
     }
 
@@ -111,20 +180,103 @@ public class ThreadSafeQueryFileParser implements QueryFileParserInterface {
 
         @Override
         public void run() {
+            SearchQuery query = SearchQuery.parse(line);
+            if (query != null) {
+                searchQuery(query, exact);
+                return;
+            }
 
             var uniqueSet = TextFileStemmer.uniqueStems(line);
             String stemmedLine = String.join(" ", uniqueSet);
+            if (stemmedLine.isEmpty()) {
+                return;
+            }
+
+            var future = new CompletableFuture<List<SingleSearchResult>>();
+            if (storeSearchData.putIfAbsent(stemmedLine, future) != null) {
+                return;
+            }
+
+            try {
+                future.complete(index.search(uniqueSet, exact));
+            } catch (RuntimeException e) {
+                storeSearchData.remove(stemmedLine, future);
+                future.completeExceptionally(e);
+                throw e;
+            }
+        }
+    }
 
-            synchronized (storeSearchData) {
-                if (stemmedLine.isEmpty() || storeSearchData.containsKey(stemmedLine)) {
-                    return;
+    /**
+     * Task searching a batch of query lines with a single
+     * {@link InvertedIndex#batchSearch(Map, boolean)} call. Only the queries this
+     * task claims are searched; queries claimed by other tasks are left to them.
+     *
+     * @author alessandrobarrera
+     *
+     */
+    public class BatchTask implements Runnable {
+        /**
+         * Lines to search
+         */
+        private final List<String> lines;
+
+        /**
+         * Exact search or not
+         */
+        private final boolean exact;
+
+        /**
+         * Task used for multithreading assigning each corresponding value.
+         *
+         * @param lines to search
+         * @param exact search or not
+         */
+        public BatchTask(List<String> lines, boolean exact) {
+            this.lines = lines;
+            this.exact = exact;
+        }
+
+        @Override
+        public void run() {
+            Map<String, Set<String>> batch = new HashMap<>();
+            Map<String, CompletableFuture<List<SingleSearchResult>>> claimed = new HashMap<>();
+
+            for (String line : lines) {
+                SearchQuery query = SearchQuery.parse(line);
+                if (query != null) {
+                    searchQuery(query, exact);
+                    continue;
+                }
+
+                var uniqueSet = TextFileStemmer.uniqueStems(line);
+                String stemmedLine = String.join(" ", uniqueSet);
+                if (stemmedLine.isEmpty() || claimed.containsKey(stemmedLine)) {
+                    continue;
+                }
+
+                var future = new CompletableFuture<List<SingleSearchResult>>();
+                if (storeSearchData.putIfAbsent(stemmedLine, future) == null) {
+                    claimed.put(stemmedLine, future);
+                    batch.put(stemmedLine, uniqueSet);
                 }
             }
 
-            var local = index.search(uniqueSet, exact);
+            if (batch.isEmpty()) {
+                return;
+            }
 
-            synchronized (storeSearchData) {
-                storeSearchData.put(stemmedLine, local);
+            try {
+                var results = index.batchSearch(batch, exact);
+                for (var entry : claimed.entrySet()) {
+                    entry.getValue().complete(results.get(entry.getKey()));
+                }
+            } catch (RuntimeException e) {
+                for (var entry : claimed.entrySet()) {
+                    storeSearchData.remove(entry.getKey(), entry.getValue());
+                    entry.getValue().completeExceptionally(e);
+                }
+                throw e;
             }
         }
     }
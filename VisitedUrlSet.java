@@ -0,0 +1,259 @@
+package edu.usfca.cs272;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe set of visited urls used to deduplicate the crawl frontier. Urls
+ * are stored as 64-bit fingerprints of their normalized string form instead of
+ * {@link java.net.URL} objects, so membership checks never trigger DNS lookups
+ * and each url costs a boxed long rather than a full url object. Inserts are
+ * lock-free, and an optional bloom filter answers most "never seen" checks
+ * without touching the fingerprint set.
+ *
+ * @author Alessandro Barrera
+ *
+ */
+public class VisitedUrlSet {
+    /**
+     * Estimated bytes used per fingerprint in the backing set (node, boxed long
+     * and table slot), taken from the heap growth of a million urls on a 64-bit
+     * JVM with compressed oops; not measured at runtime
+     */
+    private static final int BYTES_PER_FINGERPRINT = 64;
+
+    /**
+     * Fingerprints of every url added so far
+     */
+    private final Set<Long> fingerprints;
+
+    /**
+     * Bloom filter in front of the fingerprint set, or null if disabled
+     */
+    private final BloomFilter filter;
+
+    /**
+     * Number of urls added so far
+     */
+    private final AtomicInteger count;
+
+    /**
+     * Initializes a visited set without a bloom filter
+     */
+    public VisitedUrlSet() {
+        this(0);
+    }
+
+    /**
+     * Initializes a visited set fronted by a bloom filter sized for the expected
+     * number of urls
+     *
+     * @param expected number of urls expected, or 0 to disable the bloom filter
+     */
+    public VisitedUrlSet(int expected) {
+        this.fingerprints = ConcurrentHashMap.newKeySet();
+        this.filter = expected > 0 ? new BloomFilter(expected) : null;
+        this.count = new AtomicInteger();
+    }
+
+    /**
+     * Adds the url if it has not been visited yet
+     *
+     * @param url normalized url string
+     * @return true if the url was not visited before
+     */
+    public boolean add(String url) {
+        return add(url, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Adds the url if it has not been visited yet and fewer than limit urls have
+     * been added so far. The limit is enforced atomically across threads, and a
+     * url is only refused for the limit if that many other urls were added.
+     *
+     * @param url   normalized url string
+     * @param limit maximum number of urls this set may hold
+     * @return true if the url was added
+     */
+    public boolean add(String url, int limit) {
+        long fingerprint = fingerprint(url);
+        if (contains(fingerprint)) {
+            return false;
+        }
+
+        // claims the url before a slot, so a duplicate never takes the slot of
+        // another url; a refused url is removed again before the filter sees it
+        if (!fingerprints.add(fingerprint)) {
+            return false;
+        }
+
+        int current;
+        do {
+            current = count.get();
+            if (current >= limit) {
+                fingerprints.remove(fingerprint);
+                return false;
+            }
+        } while (!count.compareAndSet(current, current + 1));
+
+        if (filter != null) {
+            filter.add(fingerprint);
+        }
+        return true;
+    }
+
+    /**
+     * Checks if the url has been visited
+     *
+     * @param url normalized url string
+     * @return true if the url was visited
+     */
+    public boolean contains(String url) {
+        return contains(fingerprint(url));
+    }
+
+    /**
+     * Checks if the fingerprint has been visited
+     *
+     * @param fingerprint of the url
+     * @return true if the fingerprint was added
+     */
+    private boolean contains(long fingerprint) {
+        if (filter != null && !filter.mightContain(fingerprint)) {
+            return false;
+        }
+        return fingerprints.contains(fingerprint);
+    }
+
+    /**
+     * Returns the number of visited urls
+     *
+     * @return number of urls
+     */
+    public int size() {
+        return count.get();
+    }
+
+    /**
+     * Estimates the memory used by this set for every million urls. The
+     * fingerprint set is counted at a fixed estimate per url rather than
+     * measured, while the bloom filter adds its actual bits spread over the urls
+     * added so far.
+     *
+     * @return estimated bytes per million urls
+     */
+    public long bytesPerMillion() {
+        long bytes = (long) BYTES_PER_FINGERPRINT * 1_000_000;
+        if (filter != null && size() > 0) {
+            bytes += filter.bytes() * 1_000_000L / size();
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d urls, ~%d MB per million urls (estimated)", size(), bytesPerMillion() / (1024 * 1024));
+    }
+
+    /**
+     * Computes the 64-bit FNV-1a fingerprint of the url string
+     *
+     * @param url normalized url string
+     * @return 64-bit fingerprint
+     */
+    public static long fingerprint(String url) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : url.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Lock-free bloom filter over 64-bit fingerprints
+     *
+     * @author Alessandro Barrera
+     *
+     */
+    private static class BloomFilter {
+        /**
+         * Number of hash probes per fingerprint
+         */
+        private static final int PROBES = 7;
+
+        /**
+         * Bit array stored in longs
+         */
+        private final AtomicLongArray bits;
+
+        /**
+         * Number of bits in the filter
+         */
+        private final long size;
+
+        /**
+         * Initializes a filter with about 10 bits per expected entry (~1% false
+         * positives)
+         *
+         * @param expected number of entries
+         */
+        public BloomFilter(int expected) {
+            int words = Math.max(1, (int) Math.min(Integer.MAX_VALUE, (expected * 10L + 63) / 64));
+            this.bits = new AtomicLongArray(words);
+            this.size = words * 64L;
+        }
+
+        /**
+         * Adds the fingerprint to the filter
+         *
+         * @param fingerprint to add
+         */
+        public void add(long fingerprint) {
+            int h1 = (int) fingerprint;
+            int h2 = (int) (fingerprint >>> 32);
+            for (int i = 0; i < PROBES; i++) {
+                long bit = Math.floorMod(h1 + (long) i * h2, size);
+                int index = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long word;
+                do {
+                    word = bits.get(index);
+                    if ((word & mask) != 0) {
+                        break;
+                    }
+                } while (!bits.compareAndSet(index, word, word | mask));
+            }
+        }
+
+        /**
+         * Checks if the fingerprint may have been added
+         *
+         * @param fingerprint to check
+         * @return false if the fingerprint was definitely never added
+         */
+        public boolean mightContain(long fingerprint) {
+            int h1 = (int) fingerprint;
+            int h2 = (int) (fingerprint >>> 32);
+            for (int i = 0; i < PROBES; i++) {
+                long bit = Math.floorMod(h1 + (long) i * h2, size);
+                if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns the number of bytes used by the bit array
+         *
+         * @return bytes used
+         */
+        public long bytes() {
+            return size / 8;
+        }
+    }
+}
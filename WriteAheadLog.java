@@ -0,0 +1,1147 @@
+package edu.usfca.cs272;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Append-only binary log of the writes to an index, so a replica process can
+ * tail it and apply the same writes in the same order, and so the index can be
+ * recovered after a crash. Every record gets the next log sequence number (LSN)
+ * and is flushed to the file as soon as it is appended.
+ *
+ * <p>
+ * Records are made durable with group commit: once a batch of records has
+ * been appended, the writer that completes it forces the segment to disk, and
+ * writers that commit while that fsync runs wait for it and share the next
+ * one instead of each forcing the file. A crash loses at most the records
+ * appended since the last fsync. When the log is opened again, a record that
+ * was only partly written is cut off the end of the last segment.
+ *
+ * <p>
+ * The log lives in a directory of segments named by the LSN of their first
+ * record, plus a {@code checkpoint} file holding a snapshot of the index and
+ * the LSN it covers. A checkpoint starts a new segment and deletes the older
+ * ones, so a replica never replays more than the writes since the last
+ * checkpoint. Every log gets a random id written in its checkpoint and
+ * segments, which tells replicas when the primary started over.
+ *
+ * <p>
+ * A segment starts with {@link #MAGIC}, the log id and its first LSN. Each
+ * record is its length and the CRC-32 of its body, then the body: the LSN, the
+ * time it was appended in milliseconds, an operation byte and its arguments.
+ *
+ * @author Alessandro Barrera
+ *
+ */
+public class WriteAheadLog implements AutoCloseable {
+    /** First four bytes of every segment, "WAL" and the format version. */
+    public static final int MAGIC = 0x57414C01;
+
+    /** First four bytes of a checkpoint, "CKP" and the format version. */
+    public static final int CHECKPOINT_MAGIC = 0x434B5001;
+
+    /** The default number of bytes logged between checkpoints. */
+    public static final long DEFAULT_CHECKPOINT_BYTES = 64L << 20;
+
+    /** The default number of records appended between fsyncs. */
+    public static final int DEFAULT_SYNC_BATCH = 64;
+
+    /** Name of the checkpoint file in the log directory. */
+    public static final String CHECKPOINT = "checkpoint";
+
+    /** Extension of the segment files. */
+    public static final String SEGMENT = ".wal";
+
+    /** Bytes of a segment header: magic, log id and first LSN. */
+    private static final int SEGMENT_HEADER = 20;
+
+    /** Bytes before the body of a record: length and CRC. */
+    private static final int RECORD_HEADER = 8;
+
+    /** Least number of bytes in a record body: LSN, time and operation. */
+    private static final int BODY_HEADER = 17;
+
+    /** Largest record body accepted when reading, to catch corrupt lengths. */
+    private static final int MAX_BODY = 1 << 30;
+
+    /** Record of {@link InvertedIndex#add(String, String, int)}. */
+    private static final byte ADD = 1;
+
+    /** Record of {@link InvertedIndex#addAll(List, String)}. */
+    private static final byte ADD_WORDS = 2;
+
+    /** Record of {@link InvertedIndex#addAll(InvertedIndex)}. */
+    private static final byte MERGE = 3;
+
+    /** Record of {@link InvertedIndex#remove(String)}. */
+    private static final byte REMOVE = 4;
+
+    /** Record of {@link InvertedIndex#replace(String, InvertedIndex)}. */
+    private static final byte REPLACE = 5;
+
+    /** Record of {@link InvertedIndex#replaceAll(Collection, InvertedIndex)}. */
+    private static final byte REPLACE_ALL = 6;
+
+    /** Logger used for this class. */
+    private static final Logger log = LogManager.getLogger();
+
+    /**
+     * Directory of the segments and checkpoint
+     */
+    private final Path directory;
+
+    /**
+     * Random id of this log
+     */
+    private final long logId;
+
+    /**
+     * Bytes logged after which a checkpoint is due
+     */
+    private final long checkpointBytes;
+
+    /**
+     * Buffer holding the body of the record being appended
+     */
+    private final ByteArrayOutputStream body;
+
+    /**
+     * Stream writing to the body buffer
+     */
+    private final DataOutputStream bodyOut;
+
+    /**
+     * Checksum of record bodies
+     */
+    private final CRC32 crc;
+
+    /**
+     * Lock held while writing a checkpoint, so appends are not blocked by it
+     */
+    private final Object checkpointLock;
+
+    /**
+     * Number of records appended between fsyncs, or 0 to only force the log when
+     * a segment ends or the log is closed
+     */
+    private final int syncBatch;
+
+    /**
+     * Lock guarding the fsync state, never held while forcing the file
+     */
+    private final Object syncLock;
+
+    /**
+     * Whether a writer is forcing the log, guarded by the sync lock
+     */
+    private boolean syncing;
+
+    /**
+     * LSN of the last record known to be on disk, guarded by the sync lock
+     */
+    private long durableLsn;
+
+    /**
+     * Number of fsyncs, guarded by the sync lock
+     */
+    private long syncs;
+
+    /**
+     * Nanoseconds spent forcing the log, guarded by the sync lock
+     */
+    private long syncNanos;
+
+    /**
+     * Channel of the current segment
+     */
+    private FileChannel channel;
+
+    /**
+     * Stream appending to the current segment
+     */
+    private DataOutputStream out;
+
+    /**
+     * LSN of the first record of the current segment
+     */
+    private long segmentStart;
+
+    /**
+     * LSN of the next record
+     */
+    private long nextLsn;
+
+    /**
+     * Bytes logged since the last checkpoint started
+     */
+    private long sinceCheckpoint;
+
+    /**
+     * LSN covered by the last checkpoint written, guarded by the checkpoint lock
+     */
+    private long checkpointLsn;
+
+    /**
+     * Number of records appended since the log was opened
+     */
+    private long appended;
+
+    /**
+     * Number of bytes appended since the log was opened
+     */
+    private long appendedBytes;
+
+    /**
+     * Time the log was opened in nanoseconds
+     */
+    private final long opened;
+
+    /**
+     * Initializes a log appending records from the given LSN. No segment is
+     * open yet.
+     *
+     * @param directory       of the segments and checkpoint
+     * @param logId           random id of the log
+     * @param nextLsn         LSN of the next record
+     * @param checkpointBytes bytes logged after which a checkpoint is due
+     * @param syncBatch       records appended between fsyncs, or 0 to only force
+     *                        the log when a segment ends or the log is closed
+     */
+    private WriteAheadLog(Path directory, long logId, long nextLsn, long checkpointBytes, int syncBatch) {
+        this.directory = directory;
+        this.logId = logId;
+        this.checkpointBytes = checkpointBytes;
+        this.syncBatch = syncBatch;
+        this.body = new ByteArrayOutputStream();
+        this.bodyOut = new DataOutputStream(body);
+        this.crc = new CRC32();
+        this.checkpointLock = new Object();
+        this.syncLock = new Object();
+        this.nextLsn = nextLsn;
+        this.checkpointLsn = nextLsn - 1;
+        this.durableLsn = nextLsn - 1;
+        this.opened = System.nanoTime();
+    }
+
+    /**
+     * Starts a new log in a directory, deleting the segments of any previous log
+     * and checkpointing an empty index so replicas of the previous log start over
+     *
+     * @param directory of the segments and checkpoint, created if needed
+     * @return the new log
+     * @throws IOException if an IO error occurs
+     */
+    public static WriteAheadLog create(Path directory) throws IOException {
+        return create(directory, DEFAULT_CHECKPOINT_BYTES, DEFAULT_SYNC_BATCH);
+    }
+
+    /**
+     * Starts a new log in a directory, deleting the segments of any previous log
+     * and checkpointing an empty index so replicas of the previous log start over
+     *
+     * @param directory       of the segments and checkpoint, created if needed
+     * @param checkpointBytes bytes logged after which a checkpoint is due
+     * @param syncBatch       records appended between fsyncs, or 0 to only force
+     *                        the log when a segment ends or the log is closed
+     * @return the new log
+     * @throws IOException if an IO error occurs
+     */
+    public static WriteAheadLog create(Path directory, long checkpointBytes, int syncBatch) throws IOException {
+        Files.createDirectories(directory);
+        for (long start : segments(directory)) {
+            Files.deleteIfExists(segment(directory, start));
+        }
+
+        WriteAheadLog wal = new WriteAheadLog(directory, ThreadLocalRandom.current().nextLong(), 1, checkpointBytes,
+                syncBatch);
+        wal.openSegment();
+        wal.writeCheckpoint(new InvertedIndex(), 0);
+        log.info("Started write-ahead log {} in {}", Long.toHexString(wal.logId), directory);
+        return wal;
+    }
+
+    /**
+     * Opens the log in a directory to append to it after a restart, or starts a
+     * new one if there is none. Segments already covered by the checkpoint are
+     * deleted, and a record only partly written at the end of the last segment
+     * is cut off. Call {@link #replay(InvertedIndex)} to recover the index
+     * before appending anything.
+     *
+     * @param directory       of the segments and checkpoint
+     * @param checkpointBytes bytes logged after which a checkpoint is due
+     * @param syncBatch       records appended between fsyncs, or 0 to only force
+     *                        the log when a segment ends or the log is closed
+     * @return the log, positioned after its last complete record
+     * @throws IOException if an IO error occurs or records before the end are
+     *                     missing or corrupt
+     */
+    public static WriteAheadLog open(Path directory, long checkpointBytes, int syncBatch) throws IOException {
+        Checkpoint checkpoint = readCheckpoint(directory, false);
+        if (checkpoint == null) {
+            return create(directory, checkpointBytes, syncBatch);
+        }
+
+        long nextLsn = checkpoint.lsn + 1;
+        long lastSegment = -1;
+        long end = 0;
+        List<Long> segments = segments(directory);
+        for (int i = 0; i < segments.size(); i++) {
+            long start = segments.get(i);
+            boolean last = i == segments.size() - 1;
+            if (start <= checkpoint.lsn) {
+                // left behind by a crash right after the checkpoint was written
+                Files.deleteIfExists(segment(directory, start));
+                continue;
+            }
+            if (start != nextLsn) {
+                throw new IOException("Records " + nextLsn + " to " + (start - 1) + " are missing in " + directory);
+            }
+
+            SegmentReader reader;
+            try {
+                reader = new SegmentReader(directory, checkpoint.logId, start);
+            } catch (EOFException e) {
+                if (!last) {
+                    throw e;
+                }
+                // the crash happened while the segment was being started
+                Files.delete(segment(directory, start));
+                break;
+            }
+
+            try (reader) {
+                try {
+                    while (reader.next() != null) {
+                        // validating every record up to the end
+                    }
+                } catch (CorruptLogException e) {
+                    throw e;
+                } catch (IOException e) {
+                    if (!last) {
+                        throw e;
+                    }
+                    log.warn("Cutting off the end of the write-ahead log at LSN {}: {}", reader.getNextLsn(),
+                            e.getMessage());
+                }
+                lastSegment = start;
+                end = reader.getPosition();
+                nextLsn = reader.getNextLsn();
+            }
+        }
+
+        WriteAheadLog wal = new WriteAheadLog(directory, checkpoint.logId, nextLsn, checkpointBytes, syncBatch);
+        if (lastSegment < 0) {
+            wal.openSegment();
+        } else {
+            wal.appendTo(lastSegment, end);
+        }
+        wal.checkpointLsn = checkpoint.lsn;
+        log.info("Opened write-ahead log {} in {} after LSN {}", Long.toHexString(wal.logId), directory,
+                nextLsn - 1);
+        return wal;
+    }
+
+    /**
+     * Replays the checkpoint and every record after it into an index. Must be
+     * called on a log returned by {@link #open(Path, long, int)} before anything
+     * is appended, with writes to the index not logged again.
+     *
+     * @param index to recover, usually empty
+     * @return number of records replayed after the checkpoint
+     * @throws IOException if an IO error occurs or the log is corrupt
+     */
+    public long replay(InvertedIndex index) throws IOException {
+        long start = System.nanoTime();
+        Checkpoint checkpoint = readCheckpoint(directory, true);
+        if (!checkpoint.snapshot.getFileCount().isEmpty()) {
+            index.addAll(checkpoint.snapshot);
+        }
+
+        long last = getLastLsn();
+        long replayed = 0;
+        for (long segment : segments(directory)) {
+            if (segment > last) {
+                break;
+            }
+            try (SegmentReader reader = new SegmentReader(directory, logId, segment)) {
+                Record record;
+                while (reader.getNextLsn() <= last && (record = reader.next()) != null) {
+                    apply(record.in, index);
+                    replayed++;
+                }
+            }
+        }
+
+        log.info("Recovered {} locations from the checkpoint at LSN {} and {} records in {} ms",
+                checkpoint.snapshot.getFileCount().size(), checkpoint.lsn, replayed,
+                (System.nanoTime() - start) / 1_000_000);
+        return replayed;
+    }
+
+    /**
+     * Returns the path of a segment
+     *
+     * @param directory of the log
+     * @param start     LSN of the first record of the segment
+     * @return path of the segment
+     */
+    public static Path segment(Path directory, long start) {
+        return directory.resolve(String.format("%020d%s", start, SEGMENT));
+    }
+
+    /**
+     * Lists the segments of a log
+     *
+     * @param directory of the log
+     * @return sorted LSNs of the first record of each segment
+     * @throws IOException if an IO error occurs
+     */
+    public static List<Long> segments(Path directory) throws IOException {
+        List<Long> starts = new ArrayList<>();
+        try (DirectoryStream<Path> listing = Files.newDirectoryStream(directory, "*" + SEGMENT)) {
+            for (Path path : listing) {
+                String name = path.getFileName().toString();
+                try {
+                    starts.add(Long.parseLong(name.substring(0, name.length() - SEGMENT.length())));
+                } catch (NumberFormatException e) {
+                    log.debug("Ignoring {} in the log directory", name);
+                }
+            }
+        }
+        Collections.sort(starts);
+        return starts;
+    }
+
+    /**
+     * Logs {@link InvertedIndex#add(String, String, int)}
+     *
+     * @param word     added
+     * @param location of the word
+     * @param position of the word
+     * @return LSN of the record
+     * @throws IOException if an IO error occurs
+     */
+    public long add(String word, String location, int position) throws IOException {
+        return append(ADD, out -> {
+            out.writeUTF(word);
+            out.writeUTF(location);
+            out.writeInt(position);
+        });
+    }
+
+    /**
+     * Logs {@link InvertedIndex#addAll(List, String)}
+     *
+     * @param words    added
+     * @param location of the words
+     * @return LSN of the record
+     * @throws IOException if an IO error occurs
+     */
+    public long addAll(List<String> words, String location) throws IOException {
+        return append(ADD_WORDS, out -> {
+            out.writeUTF(location);
+            out.writeInt(words.size());
+            for (String word : words) {
+                out.writeUTF(word);
+            }
+        });
+    }
+
+    /**
+     * Logs {@link InvertedIndex#addAll(InvertedIndex)}
+     *
+     * @param local index merged
+     * @return LSN of the record
+     * @throws IOException if an IO error occurs
+     */
+    public long addAll(InvertedIndex local) throws IOException {
+        return append(MERGE, local::write);
+    }
+
+    /**
+     * Logs {@link InvertedIndex#remove(String)}
+     *
+     * @param location removed
+     * @return LSN of the record
+     * @throws IOException if an IO error occurs
+     */
+    public long remove(String location) throws IOException {
+        return append(REMOVE, out -> out.writeUTF(location));
+    }
+
+    /**
+     * Logs {@link InvertedIndex#replace(String, InvertedIndex)}
+     *
+     * @param location replaced
+     * @param local    index holding the new postings of the location
+     * @return LSN of the record
+     * @throws IOException if an IO error occurs
+     */
+    public long replace(String location, InvertedIndex local) throws IOException {
+        return append(REPLACE, out -> {
+            out.writeUTF(location);
+            local.write(out);
+        });
+    }
+
+    /**
+     * Logs {@link InvertedIndex#replaceAll(Collection, InvertedIndex)}
+     *
+     * @param locations replaced
+     * @param local     index holding the new postings of the locations
+     * @return LSN of the record
+     * @throws IOException if an IO error occurs
+     */
+    public long replaceAll(Collection<String> locations, InvertedIndex local) throws IOException {
+        return append(REPLACE_ALL, out -> {
+            out.writeInt(locations.size());
+            for (String location : locations) {
+                out.writeUTF(location);
+            }
+            local.write(out);
+        });
+    }
+
+    /**
+     * Applies the operation of a record to an index
+     *
+     * @param in    body of the record after its LSN and time
+     * @param index to write
+     * @throws IOException if an IO error occurs or the operation is unknown
+     */
+    public static void apply(DataInputStream in, InvertedIndex index) throws IOException {
+        byte operation = in.readByte();
+        switch (operation) {
+            case ADD:
+                index.add(in.readUTF(), in.readUTF(), in.readInt());
+                break;
+            case ADD_WORDS: {
+                String location = in.readUTF();
+                int size = in.readInt();
+                List<String> words = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    words.add(in.readUTF());
+                }
+                index.addAll(words, location);
+                break;
+            }
+            case MERGE:
+                index.addAll(InvertedIndex.read(in));
+                break;
+            case REMOVE:
+                index.remove(in.readUTF());
+                break;
+            case REPLACE:
+                index.replace(in.readUTF(), InvertedIndex.read(in));
+                break;
+            case REPLACE_ALL: {
+                int size = in.readInt();
+                List<String> locations = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    locations.add(in.readUTF());
+                }
+                index.replaceAll(locations, InvertedIndex.read(in));
+                break;
+            }
+            default:
+                throw new IOException("Unknown log operation: " + operation);
+        }
+    }
+
+    /**
+     * Appends one record and flushes it to the segment
+     *
+     * @param operation of the record
+     * @param arguments writer of the arguments of the operation
+     * @return LSN of the record
+     * @throws IOException if an IO error occurs
+     */
+    private synchronized long append(byte operation, Arguments arguments) throws IOException {
+        body.reset();
+        bodyOut.writeLong(nextLsn);
+        bodyOut.writeLong(System.currentTimeMillis());
+        bodyOut.writeByte(operation);
+        arguments.write(bodyOut);
+        bodyOut.flush();
+
+        byte[] bytes = body.toByteArray();
+        crc.reset();
+        crc.update(bytes);
+        out.writeInt(bytes.length);
+        out.writeInt((int) crc.getValue());
+        out.write(bytes);
+        out.flush();
+
+        appended++;
+        appendedBytes += RECORD_HEADER + bytes.length;
+        sinceCheckpoint += RECORD_HEADER + bytes.length;
+        return nextLsn++;
+    }
+
+    /**
+     * Makes a record durable once its batch is complete. Returns at once if fewer
+     * than a batch of records were appended since the last fsync; otherwise
+     * forces the log, or waits for the fsync of another writer if it covers the
+     * record.
+     *
+     * @param lsn of the record
+     * @throws IOException if an IO error occurs
+     */
+    public void commit(long lsn) throws IOException {
+        synchronized (syncLock) {
+            if (syncBatch <= 0 || lsn - durableLsn < syncBatch) {
+                return;
+            }
+        }
+        sync(lsn);
+    }
+
+    /**
+     * Forces the log to disk up to at least the given record, sharing the fsync
+     * with every writer waiting meanwhile
+     *
+     * @param lsn of the record
+     * @throws IOException if an IO error occurs
+     */
+    private void sync(long lsn) throws IOException {
+        synchronized (syncLock) {
+            while (syncing && durableLsn < lsn) {
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for the log to be forced");
+                }
+            }
+            if (durableLsn >= lsn) {
+                return;
+            }
+            syncing = true;
+        }
+
+        long target;
+        FileChannel current;
+        synchronized (this) {
+            // every appended record is already flushed to the channel
+            target = nextLsn - 1;
+            current = channel;
+        }
+
+        long start = System.nanoTime();
+        boolean forced = false;
+        try {
+            current.force(false);
+            forced = true;
+        } catch (ClosedChannelException e) {
+            // the segment ended meanwhile, which forced it
+            forced = true;
+        } finally {
+            synchronized (syncLock) {
+                syncing = false;
+                if (forced) {
+                    durableLsn = Math.max(durableLsn, target);
+                    syncs++;
+                    syncNanos += System.nanoTime() - start;
+                }
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Forces and closes the current segment
+     *
+     * @throws IOException if an IO error occurs
+     */
+    private void closeSegment() throws IOException {
+        out.flush();
+        channel.force(false);
+        synchronized (syncLock) {
+            durableLsn = Math.max(durableLsn, nextLsn - 1);
+        }
+        out.close();
+    }
+
+    /**
+     * Continues appending to an existing segment, cutting off anything after the
+     * last complete record
+     *
+     * @param start    LSN of the first record of the segment
+     * @param position after the last complete record
+     * @throws IOException if an IO error occurs
+     */
+    private void appendTo(long start, long position) throws IOException {
+        segmentStart = start;
+        channel = FileChannel.open(segment(directory, start), StandardOpenOption.WRITE);
+        if (channel.size() > position) {
+            log.warn("Cut {} bytes off the end of the write-ahead log", channel.size() - position);
+            channel.truncate(position);
+            channel.force(false);
+        }
+        channel.position(position);
+        out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+    }
+
+    /**
+     * Opens a new segment starting at the next LSN
+     *
+     * @throws IOException if an IO error occurs
+     */
+    private void openSegment() throws IOException {
+        segmentStart = nextLsn;
+        channel = FileChannel.open(segment(directory, segmentStart), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+        out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+        out.writeInt(MAGIC);
+        out.writeLong(logId);
+        out.writeLong(segmentStart);
+        out.flush();
+    }
+
+    /**
+     * Ends the current segment, forcing it to disk, and starts a new one, unless
+     * the current segment has no records yet. Called before a snapshot of the
+     * index is written as a checkpoint, while no write can be logged, so the
+     * snapshot holds exactly the writes up to the returned LSN.
+     *
+     * @return LSN of the last record before the new segment
+     * @throws IOException if an IO error occurs
+     */
+    public synchronized long roll() throws IOException {
+        sinceCheckpoint = 0;
+        if (nextLsn > segmentStart) {
+            closeSegment();
+            openSegment();
+        }
+        return nextLsn - 1;
+    }
+
+    /**
+     * Returns whether enough bytes were logged since the last checkpoint that a
+     * new one is due. Returns true only once per checkpoint interval, so a single
+     * writer runs the checkpoint.
+     *
+     * @return true if the caller should checkpoint the index
+     */
+    public synchronized boolean checkpointDue() {
+        if (sinceCheckpoint < checkpointBytes) {
+            return false;
+        }
+        sinceCheckpoint = 0;
+        return true;
+    }
+
+    /**
+     * Writes a snapshot of the index as the new checkpoint and, once it is on
+     * disk, deletes the segments it covers. Replicas reading a deleted segment keep reading it
+     * through their open channel.
+     *
+     * @param snapshot of the index holding exactly the writes up to the LSN
+     * @param lsn      returned by {@link #roll()} when the snapshot was taken
+     * @throws IOException if an IO error occurs
+     */
+    public void checkpoint(InvertedIndex snapshot, long lsn) throws IOException {
+        long start = System.nanoTime();
+        int deleted = 0;
+        synchronized (checkpointLock) {
+            if (lsn <= checkpointLsn) {
+                return;
+            }
+            writeCheckpoint(snapshot, lsn);
+            for (long segment : segments(directory)) {
+                if (segment <= lsn) {
+                    Files.deleteIfExists(segment(directory, segment));
+                    deleted++;
+                }
+            }
+        }
+        log.info("Checkpointed {} locations at LSN {} and deleted {} segments in {} ms",
+                snapshot.getFileCount().size(), lsn, deleted, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * Writes a checkpoint to a temporary file, forces it to disk and moves it in
+     * place, forcing the directory so the move survives a crash before any
+     * segment it covers is deleted
+     *
+     * @param snapshot of the index
+     * @param lsn      covered by the snapshot
+     * @throws IOException if an IO error occurs
+     */
+    private void writeCheckpoint(InvertedIndex snapshot, long lsn) throws IOException {
+        synchronized (checkpointLock) {
+            Path temp = directory.resolve(CHECKPOINT + ".tmp");
+            try (FileChannel file = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                    CheckedOutputStream checked = new CheckedOutputStream(
+                            new BufferedOutputStream(Channels.newOutputStream(file)), new CRC32());
+                    DataOutputStream checkpoint = new DataOutputStream(checked)) {
+                checkpoint.writeInt(CHECKPOINT_MAGIC);
+                checkpoint.writeLong(logId);
+                checkpoint.writeLong(lsn);
+                snapshot.write(checkpoint);
+                checkpoint.flush();
+                checkpoint.writeInt((int) checked.getChecksum().getValue());
+                checkpoint.flush();
+                file.force(true);
+            }
+            Files.move(temp, directory.resolve(CHECKPOINT), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            forceDirectory(directory);
+            checkpointLsn = lsn;
+        }
+    }
+
+    /**
+     * Forces the entries of a directory to disk, so files moved or created in it
+     * survive a crash. Does nothing on platforms that cannot open a directory.
+     *
+     * @param directory to force
+     * @throws IOException if an IO error occurs while forcing
+     */
+    static void forceDirectory(Path directory) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException e) {
+            log.debug("Unable to open {} to force it: {}", directory, e.getMessage());
+            return;
+        }
+        try (channel) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Reads the checkpoint of a log
+     *
+     * @param directory of the log
+     * @param postings  whether to read the snapshot too, or only the log id and
+     *                  LSN
+     * @return the checkpoint, or null if the log has none yet
+     * @throws IOException if an IO error occurs or the checkpoint is corrupt
+     */
+    public static Checkpoint readCheckpoint(Path directory, boolean postings) throws IOException {
+        Path path = directory.resolve(CHECKPOINT);
+        try (CheckedInputStream checked = new CheckedInputStream(
+                new BufferedInputStream(Files.newInputStream(path)), new CRC32());
+                DataInputStream in = new DataInputStream(checked)) {
+            if (in.readInt() != CHECKPOINT_MAGIC) {
+                throw new IOException("Not a checkpoint: " + path);
+            }
+            long logId = in.readLong();
+            long lsn = in.readLong();
+            if (!postings) {
+                return new Checkpoint(logId, lsn, null);
+            }
+
+            InvertedIndex snapshot = InvertedIndex.read(in);
+            int expected = (int) checked.getChecksum().getValue();
+            if (in.readInt() != expected) {
+                throw new IOException("Corrupt checkpoint: " + path);
+            }
+            return new Checkpoint(logId, lsn, snapshot);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the LSN of the last record appended
+     *
+     * @return last LSN, or the LSN of the first checkpoint if nothing was logged
+     */
+    public synchronized long getLastLsn() {
+        return nextLsn - 1;
+    }
+
+    /**
+     * Returns the number of fsyncs so far
+     *
+     * @return number of fsyncs
+     */
+    public long getSyncs() {
+        synchronized (syncLock) {
+            return syncs;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeSegment();
+        double seconds = (System.nanoTime() - opened) / 1e9;
+        synchronized (syncLock) {
+            log.info("Write-ahead log appended {} records and {} bytes ({} records/sec) with {} fsyncs of {} ms on average",
+                    appended, appendedBytes, seconds > 0 ? (long) (appended / seconds) : appended, syncs,
+                    syncs > 0 ? syncNanos / syncs / 1_000_000.0 : 0);
+        }
+    }
+
+    /**
+     * Writer of the arguments of a record
+     */
+    private interface Arguments {
+        /**
+         * Writes the arguments
+         *
+         * @param out stream to write
+         * @throws IOException if an IO error occurs
+         */
+        public void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Thrown for a complete record whose checksum does not match and that is
+     * followed by other records, which a crash cannot cause
+     */
+    public static class CorruptLogException extends IOException {
+        /** Class version for serialization. */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Initializes the exception
+         *
+         * @param message describing the corrupt record
+         */
+        public CorruptLogException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Checkpoint of a log
+     */
+    public static class Checkpoint {
+        /**
+         * Id of the log
+         */
+        public final long logId;
+
+        /**
+         * LSN of the last record included in the snapshot
+         */
+        public final long lsn;
+
+        /**
+         * Snapshot of the index, or null if only the header was read
+         */
+        public final InvertedIndex snapshot;
+
+        /**
+         * Initializes a checkpoint
+         *
+         * @param logId    id of the log
+         * @param lsn      of the last record included in the snapshot
+         * @param snapshot of the index, or null if only the header was read
+         */
+        public Checkpoint(long logId, long lsn, InvertedIndex snapshot) {
+            this.logId = logId;
+            this.lsn = lsn;
+            this.snapshot = snapshot;
+        }
+    }
+
+    /**
+     * Record read from a segment
+     */
+    public static class Record {
+        /**
+         * LSN of the record
+         */
+        public final long lsn;
+
+        /**
+         * Time the record was appended in milliseconds
+         */
+        public final long time;
+
+        /**
+         * Bytes of the record in the segment
+         */
+        public final int size;
+
+        /**
+         * Stream positioned at the operation of the record
+         */
+        public final DataInputStream in;
+
+        /**
+         * Initializes a record
+         *
+         * @param lsn  of the record
+         * @param time the record was appended in milliseconds
+         * @param size bytes of the record in the segment
+         * @param in   stream positioned at the operation of the record
+         */
+        public Record(long lsn, long time, int size, DataInputStream in) {
+            this.lsn = lsn;
+            this.time = time;
+            this.size = size;
+            this.in = in;
+        }
+    }
+
+    /**
+     * Reader of one segment, which may still be written by the primary. A record
+     * that is not completely written yet is not returned until it is.
+     */
+    public static class SegmentReader implements AutoCloseable {
+        /**
+         * Channel of the segment
+         */
+        private final FileChannel channel;
+
+        /**
+         * LSN of the first record of the segment
+         */
+        private final long start;
+
+        /**
+         * Position of the next record
+         */
+        private long position;
+
+        /**
+         * LSN of the next record
+         */
+        private long nextLsn;
+
+        /**
+         * Opens a segment and checks its header
+         *
+         * @param directory of the log
+         * @param logId     expected id of the log
+         * @param start     LSN of the first record of the segment
+         * @throws IOException if an IO error occurs, the header is not written yet
+         *                     or does not match
+         */
+        public SegmentReader(Path directory, long logId, long start) throws IOException {
+            Path path = segment(directory, start);
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER);
+                if (channel.read(header, 0) < SEGMENT_HEADER) {
+                    throw new EOFException("Header not written yet: " + path);
+                }
+                header.flip();
+                if (header.getInt() != MAGIC || header.getLong() != logId || header.getLong() != start) {
+                    throw new IOException("Segment of another log: " + path);
+                }
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            this.start = start;
+            this.position = SEGMENT_HEADER;
+            this.nextLsn = start;
+        }
+
+        /**
+         * Reads the next record
+         *
+         * @return the record, or null if it is not completely written yet
+         * @throws IOException if an IO error occurs or a complete record is corrupt
+         */
+        public Record next() throws IOException {
+            long available = channel.size() - position;
+            if (available < RECORD_HEADER) {
+                return null;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+            channel.read(header, position);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < BODY_HEADER || length > MAX_BODY) {
+                throw new IOException("Corrupt record length " + length + " at LSN " + nextLsn);
+            }
+            if (available < RECORD_HEADER + length) {
+                return null;
+            }
+
+            ByteBuffer body = ByteBuffer.allocate(length);
+            while (body.hasRemaining()) {
+                channel.read(body, position + RECORD_HEADER + body.position());
+            }
+            CRC32 crc = new CRC32();
+            crc.update(body.array());
+            if ((int) crc.getValue() != checksum) {
+                if (available == RECORD_HEADER + length) {
+                    // the last record of the segment may be visible before all of it is written
+                    return null;
+                }
+                throw new CorruptLogException("Corrupt record at LSN " + nextLsn);
+            }
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body.array()));
+            long lsn = in.readLong();
+            if (lsn != nextLsn) {
+                throw new IOException("Expected LSN " + nextLsn + " but read " + lsn);
+            }
+            position += RECORD_HEADER + length;
+            nextLsn++;
+            return new Record(lsn, in.readLong(), RECORD_HEADER + length, in);
+        }
+
+        /**
+         * Returns the LSN of the first record of the segment
+         *
+         * @return first LSN
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * Returns the position of the next record
+         *
+         * @return position in bytes
+         */
+        public long getPosition() {
+            return position;
+        }
+
+        /**
+         * Returns the LSN of the next record
+         *
+         * @return next LSN
+         */
+        public long getNextLsn() {
+            return nextLsn;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}